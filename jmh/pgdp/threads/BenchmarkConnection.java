@@ -0,0 +1,48 @@
+package pgdp.threads;
+
+import java.net.InetAddress;
+
+/**
+ * connection without a socket that only counts what it receives
+ * lets the benchmarks run the protocol without any network in between
+ */
+class BenchmarkConnection extends Connection {
+	int received;
+	Message last;
+
+	public BenchmarkConnection(ChatServer server) {
+		super(server);
+	}
+
+	/**
+	 * create users that finished the welcome procedure
+	 *
+	 * @param server of the users
+	 * @param users  number of users
+	 * @return connections of the users, named user0, user1, ...
+	 */
+	static BenchmarkConnection[] connect(ChatServer server, int users) {
+		BenchmarkConnection[] connections = new BenchmarkConnection[users];
+		for (int i = 0; i < users; i++) {
+			connections[i] = new BenchmarkConnection(server);
+			server.getRegistry().add(connections[i], Integer.MAX_VALUE);
+			connections[i].handleLine("user" + i);
+		}
+		return connections;
+	}
+
+	@Override
+	void send(Message msg) {
+		received++;
+		last = msg;
+	}
+
+	@Override
+	void close() {
+	}
+
+	@Override
+	InetAddress getInetAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+}
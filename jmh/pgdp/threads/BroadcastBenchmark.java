@@ -0,0 +1,51 @@
+package pgdp.threads;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a chat line that goes to everyone, from parsing the input to handing the message to every receiver
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+	@Param({"10", "100", "1000"})
+	int users;
+
+	BenchmarkConnection[] connections;
+
+	@Setup
+	public void setUp() {
+		connections = BenchmarkConnection.connect(new ChatServer(new ServerConfig()), users);
+	}
+
+	@Benchmark
+	public void broadcast() {
+		connections[0].handleLine("Penguins swallow pebbles and stones as well as their food.");
+	}
+
+	@Benchmark
+	public void roomBroadcast() {
+		if (connections[0].server.getRooms().get("#bench") == null) {
+			for (BenchmarkConnection connection : connections) {
+				connection.handleLine("JOIN #bench");
+			}
+		}
+		connections[0].handleLine("#bench Penguins swallow pebbles and stones as well as their food.");
+	}
+}
@@ -0,0 +1,53 @@
+package pgdp.threads;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * formatting of the messages with the colors of ConsoleColors, and encoding them for the socket
+ * frameEncode is what the server does instead for clients of the binary protocol
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+	String user = "penguin";
+	String msg = "Penguins swallow pebbles and stones as well as their food.";
+
+	@Benchmark
+	public String messageFormat() {
+		return Message.messageFormat(user, msg);
+	}
+
+	@Benchmark
+	public String privateMessageFormat() {
+		return Message.privateMessageFormat(user, msg);
+	}
+
+	@Benchmark
+	public String infoFormat() {
+		return Message.infoFormat(msg);
+	}
+
+	@Benchmark
+	public byte[] formatAndEncode() {
+		return Message.chat(1, user, msg).bytes();
+	}
+
+	@Benchmark
+	public byte[] frameEncode() {
+		return Frame.encode(Frame.CHAT, 1, 0, msg);
+	}
+}
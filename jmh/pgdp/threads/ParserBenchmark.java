@@ -0,0 +1,57 @@
+package pgdp.threads;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * recognizing the command of a line, the way Connection used to with substrings and a caught exception,
+ * and with CommandParser
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+	@Param({"@penguin Penguins swallow pebbles", "@penguin", "Penguins swallow pebbles and stones", "HISTORY x"})
+	String line;
+
+	Command command = new Command();
+
+	@Benchmark
+	public Object substrings() {
+		if (line.indexOf("@") == 0) {
+			try {
+				String user = line.substring(1, line.indexOf(" "));
+				return user + line.substring(line.indexOf(" ") + 1);
+			} catch (StringIndexOutOfBoundsException e) {
+				return e;
+			}
+		} else if (line.startsWith("HISTORY")) {
+			try {
+				return Integer.parseInt(line.substring(7).strip());
+			} catch (NumberFormatException e) {
+				return e;
+			}
+		} else if (line.equals("WHOIS") || line.equals("LOGOUT") || line.equals("PENGU")) {
+			return line;
+		}
+		return line;
+	}
+
+	@Benchmark
+	public Command parser() {
+		return CommandParser.parse(line, command);
+	}
+}
@@ -0,0 +1,64 @@
+package pgdp.threads;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * finding the receiver of a private message and building the WHOIS list
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+	@Param({"10", "100", "1000"})
+	int users;
+
+	ChatServer server;
+	BenchmarkConnection[] connections;
+	String[] names;
+	String[] privateMessages;
+	int next;
+
+	@Setup
+	public void setUp() {
+		server = new ChatServer(new ServerConfig());
+		connections = BenchmarkConnection.connect(server, users);
+		names = new String[users];
+		privateMessages = new String[users];
+		for (int i = 0; i < users; i++) {
+			names[i] = "user" + i;
+			privateMessages[i] = "@user" + i + " Penguins typically are not afraid of humans.";
+		}
+	}
+
+	@Benchmark
+	public Connection lookup() {
+		next = (next + 1) % users;
+		return server.getRegistry().lookup(names[next]);
+	}
+
+	@Benchmark
+	public void privateMessage() {
+		next = (next + 1) % users;
+		connections[0].handleLine(privateMessages[next]);
+	}
+
+	@Benchmark
+	public void whois() {
+		connections[0].handleLine("WHOIS");
+	}
+}
@@ -0,0 +1,66 @@
+package pgdp.threads;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * whole sessions through the in-memory transport: connect, log in, say something and log out
+ * the other users only count what they receive, so this is the protocol without any network
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionBenchmark {
+	private static final byte[] SESSION = "visitor\nhello everyone\nLOGOUT\n".getBytes(StandardCharsets.UTF_8);
+
+	@Param({"0", "100"})
+	int users;
+
+	ChatServer server;
+	byte[] buffer = new byte[8192];
+
+	@Setup
+	public void setUp() {
+		server = new ChatServer(new ServerConfig().maxConnections(users + 1));
+		BenchmarkConnection.connect(server, users);
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.stop();
+	}
+
+	/**
+	 * @return bytes the visitor received
+	 */
+	@Benchmark
+	public int session() throws IOException {
+		LocalConnection connection = server.connect();
+		connection.getOutputStream().write(SESSION);
+		InputStream in = connection.getInputStream();
+		int total = 0;
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			total += count;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,230 @@
+package pgdp.threads;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * non-blocking connection that is served by an event loop
+ * splits the incoming bytes into lines and writes queued messages whenever the socket accepts them
+ */
+class ChannelConnection extends Connection implements EventLoop.Handler {
+	//longest line a client may send, everything above is most likely garbage
+	static final int MAX_LINE_LENGTH = 64 * 1024;
+	//most messages that are handed to the socket in one gathering write
+	private static final int MAX_BATCH = 64;
+
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	private final InetAddress address;
+	private SelectionKey key;
+
+	private final LineBuffer partialLine = new LineBuffer(MAX_LINE_LENGTH);
+
+	private final OutboundQueue outbound;
+	//messages of the current write, batch[batchStart] is the first one that was not written completely
+	private ByteBuffer[] batch;
+	private int batchStart;
+	private int batchEnd;
+	private final int flushThreshold;
+	private final long lingerNanos;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private volatile boolean closeRequested;
+
+	public ChannelConnection(ChatServer server, SocketChannel channel, EventLoop loop) {
+		super(server);
+		this.channel = channel;
+		this.loop = loop;
+		this.address = channel.socket().getInetAddress();
+		this.outbound = createOutboundQueue();
+		this.flushThreshold = server.getConfig().getFlushThreshold();
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(server.getConfig().getLingerMillis());
+	}
+
+	/**
+	 * register the channel with the event loop, must be called on the event loop
+	 */
+	void register() {
+		try {
+			channel.configureBlocking(false);
+			key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			failed(e);
+			return;
+		}
+		opened();
+	}
+
+	/**
+	 * queue a message and make sure the event loop writes it
+	 *
+	 * @param msg to be sent
+	 */
+	@Override
+	void send(Message msg) {
+		if (closed.get()) return;
+		if (!outbound.offer(msg)) {
+			//the client is too slow, drop it without writing the rest
+			loop.execute(this::closeNow);
+			return;
+		}
+		scheduleFlush();
+	}
+
+	/**
+	 * close the channel once everything queued so far has been written, later messages are not accepted
+	 */
+	@Override
+	void close() {
+		outbound.finish();
+		closeRequested = true;
+		scheduleFlush();
+	}
+
+	@Override
+	void abort() {
+		loop.execute(this::closeNow);
+	}
+
+	@Override
+	InetAddress getInetAddress() {
+		return address;
+	}
+
+	/**
+	 * helper method that makes sure the event loop writes the queue soon
+	 * messages queued until then are written together, right away once the flush threshold is reached,
+	 * otherwise when the loop is done with its current work or when the linger time is over
+	 */
+	private void scheduleFlush() {
+		if (outbound.bytes() >= flushThreshold) {
+			if (loop.inEventLoop()) {
+				flush();
+			} else {
+				loop.execute(this::flush);
+			}
+		} else if (flushScheduled.compareAndSet(false, true)) {
+			Runnable task = () -> {
+				flushScheduled.set(false);
+				flush();
+			};
+			if (lingerNanos > 0) {
+				loop.schedule(task, lingerNanos);
+			} else {
+				loop.execute(task);
+			}
+		}
+	}
+
+	@Override
+	public void handle(SelectionKey key) throws IOException {
+		if (key.isReadable()) {
+			read();
+		}
+		if (key.isValid() && key.isWritable()) {
+			flush();
+		}
+	}
+
+	@Override
+	public void failed(Exception exc) {
+		//a broken socket is normal, anything else is a bug in handling the input
+		if (!(exc instanceof IOException)) server.getLog().error(address, getUsername(), "handling input", exc);
+		closeNow();
+	}
+
+	/**
+	 * helper method that reads everything available and handles all complete lines
+	 */
+	private void read() throws IOException {
+		ByteBuffer buffer = loop.readBuffer();
+		buffer.clear();
+		if (channel.read(buffer) < 0) {
+			closeNow();
+			return;
+		}
+		buffer.flip();
+
+		int start = buffer.position();
+		for (int i = start; i < buffer.limit(); i++) {
+			if (buffer.get(i) != '\n') continue;
+			String line = partialLine.line(buffer, start, i);
+			start = i + 1;
+			if (line != null) handleLine(line);
+			if (closed.get() || closeRequested) return;
+		}
+		partialLine.append(buffer, start, buffer.limit());
+	}
+
+	/**
+	 * helper method that writes queued messages until the socket does not accept more
+	 * must be called on the event loop
+	 */
+	private void flush() {
+		if (key == null || !key.isValid()) return;
+		try {
+			while (batchStart < batchEnd || fillBatch()) {
+				long written = channel.write(batch, batchStart, batchEnd - batchStart);
+				int completed = 0;
+				while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+					batch[batchStart++] = null;
+					completed++;
+				}
+				server.getMetrics().written(completed, written);
+				if (batchStart < batchEnd) {
+					//continue once the socket is writable again
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		} catch (IOException e) {
+			closeNow();
+			return;
+		}
+		if (outbound.isFinished()) closeNow();
+	}
+
+	/**
+	 * helper method that takes queued messages for the next gathering write
+	 *
+	 * @return if there is anything to write
+	 */
+	private boolean fillBatch() {
+		if (batch == null) batch = new ByteBuffer[MAX_BATCH];
+		batchStart = 0;
+		batchEnd = 0;
+		long bytes = 0;
+		Message msg;
+		while (batchEnd < MAX_BATCH && bytes < flushThreshold && (msg = outbound.poll()) != null) {
+			//a view of its own on bytes that may be shared with other receivers
+			ByteBuffer buffer = ByteBuffer.wrap(encode(msg)).asReadOnlyBuffer();
+			batch[batchEnd++] = buffer;
+			bytes += buffer.remaining();
+		}
+		return batchEnd > 0;
+	}
+
+	/**
+	 * helper method that closes the channel and removes the user
+	 */
+	private void closeNow() {
+		if (!closed.compareAndSet(false, true)) return;
+		if (key != null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			server.getLog().error(address, getUsername(), "closing", e);
+		}
+		outbound.close();
+		batch = null;
+		batchStart = 0;
+		batchEnd = 0;
+		closed();
+	}
+}
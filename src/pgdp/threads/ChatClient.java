@@ -1,20 +1,39 @@
 package pgdp.threads;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 public class ChatClient {
+	//how long the server may be silent before it is sent a PING, and before it is given up
+	static final int HEARTBEAT_MILLIS = 30_000;
+	static final int IDLE_TIMEOUT_MILLIS = 90_000;
+	//one wheel checks all clients of this JVM
+	private static TimerWheel heartbeats;
+
 	Socket socket;
 	String address;
 	int portNumber;
 	boolean running;
+	//ask the server for binary frames and color the messages here
+	boolean binary = true;
+	//ask the server to compress large frames, only with binary
+	boolean compress = true;
+	private PrintWriter output;
+	//System.nanoTime() of the last line or frame from the server
+	volatile long lastRead = System.nanoTime();
 
 	public ChatClient() {
 		this("localhost", "3000");
@@ -53,9 +72,10 @@ public class ChatClient {
 	 *
 	 * @param msg to be sent
 	 */
-	private void send(String msg) {
+	synchronized void send(String msg) {
 		try {
-			PrintWriter output = new PrintWriter(this.socket.getOutputStream());
+			//keep one writer for the whole connection instead of creating one per line
+			if (output == null) output = new PrintWriter(this.socket.getOutputStream());
 			output.println(msg);
 			output.flush();
 		} catch (IOException e) {
@@ -67,77 +87,155 @@ public class ChatClient {
 	 * helper method that starts the client
 	 */
 	private void run() {
+		DataInputStream in;
+		FrameReader frames;
+		//the only reader of System.in, a second scanner would buffer input the first one never sees
+		Scanner scanner = new Scanner(System.in);
 		try {
-			Scanner scanner = new Scanner(System.in);
-			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			frames = new FrameReader(in);
 
-			// request valid username and send it to server until it is correct
-			String response = in.readLine();
+			// the server always starts with a line, after that it sends frames if we ask for them
+			String response = readLine(in);
+			if (binary && "ENTER_USERNAME".equals(response)) {
+				send(compress ? "DEFLATE" : "BINARY");
+				response = receive(in, frames);
+			}
 			// request username as long as the server requires it
 			while (response == null || response.equals("ENTER_USERNAME")) {
 				System.out.print("Please input a username: ");
+				if (!scanner.hasNextLine()) return;
 				String input = scanner.nextLine().strip();
 				//send username to the server
 				send(input);
-				response = in.readLine();
+				response = receive(in, frames);
 			}
 		} catch (IOException exc) {
 			exc.printStackTrace();
+			return;
 		}
 
 		// start separate threads to allow for messages to be written and sent at the same time
-		new WriteThread(socket).start();
-		new TypeThread(socket).start();
+		new WriteThread(this, in, frames).start();
+		new TypeThread(this, scanner).start();
+		heartbeats().schedule(this::checkHeartbeat, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
 	}
 
 	/**
-	 * start client
-	 *
-	 * @param args server address, port
+	 * @return wheel that checks all clients, started by the first one that needs it
 	 */
-	public static void main(String[] args) {
-		if (args.length < 2) {
-			new ChatClient().run();
-		} else {
-			new ChatClient(args[0], args[1]).run();
+	private static synchronized TimerWheel heartbeats() {
+		if (heartbeats == null) heartbeats = new TimerWheel(1, TimeUnit.SECONDS, 64, "client-heartbeat");
+		return heartbeats;
+	}
+
+	/**
+	 * runs on the timer wheel
+	 * pings a server that was silent for the heartbeat and gives up on one that was silent for the idle timeout,
+	 * otherwise a dead connection would only be noticed when typing the next message
+	 */
+	private void checkHeartbeat() {
+		if (socket.isClosed()) return;
+		long silent = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRead);
+		if (silent >= IDLE_TIMEOUT_MILLIS) {
+			System.out.println(Message.errorFormat("The server stopped answering"));
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//closed anyway
+			}
+			return;
 		}
+		long next = HEARTBEAT_MILLIS - silent;
+		if (silent >= HEARTBEAT_MILLIS) {
+			send(Connection.PING);
+			next = Math.min(HEARTBEAT_MILLIS, IDLE_TIMEOUT_MILLIS - silent);
+		}
+		heartbeats().schedule(this::checkHeartbeat, next, TimeUnit.MILLISECONDS);
 	}
-}
 
-class TypeThread extends Thread {
-	private Socket socket;
+	/**
+	 * called by the thread reading from the server for every line or frame
+	 *
+	 * @param text of the line or raw frame, null for other frames
+	 * @return if the text is part of the heartbeat and not to be shown
+	 */
+	boolean heartbeat(String text) {
+		lastRead = System.nanoTime();
+		if (text == null) return false;
+		if (text.equals(Connection.PING)) {
+			send(Connection.PONG);
+			return true;
+		}
+		return text.equals(Connection.PONG);
+	}
 
-	public TypeThread(Socket socket) {
-		this.socket = socket;
+	/**
+	 * helper method that reads the next answer during the login
+	 *
+	 * @param in     stream from the server
+	 * @param frames reader of the same stream once the server sends frames
+	 * @return the text of the line or frame, null if the server closed the connection
+	 */
+	private String receive(DataInputStream in, FrameReader frames) throws IOException {
+		if (!binary) return readLine(in);
+		Frame frame = frames.read();
+		return frame == null ? null : frame.payload();
 	}
 
 	/**
-	 * send a message to the socket
+	 * read one line without reading ahead, so the stream can switch to frames right after it
 	 *
-	 * @param msg to be sent
+	 * @param in stream from the server
+	 * @return line without its terminator, null if the stream ended
 	 */
-	private void send(String msg) {
-		try {
-			PrintWriter output = new PrintWriter(this.socket.getOutputStream());
-			output.println(msg);
-			output.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+	static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+			line.write(b);
 		}
+		String text = line.toString(StandardCharsets.UTF_8);
+		return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+	}
+
+	/**
+	 * start client
+	 *
+	 * @param args server address, port, optionally text to use the line protocol or binary for uncompressed frames
+	 */
+	public static void main(String[] args) {
+		ChatClient client = args.length < 2 ? new ChatClient() : new ChatClient(args[0], args[1]);
+		client.binary = args.length < 3 || !args[2].equals("text");
+		client.compress = args.length < 3 || !args[2].equals("binary");
+		client.run();
+	}
+}
+
+class TypeThread extends Thread {
+	private final ChatClient client;
+	private final Scanner scanner;
+
+	/**
+	 * @param client  to send the input with
+	 * @param scanner of System.in that was already used for the username
+	 */
+	public TypeThread(ChatClient client, Scanner scanner) {
+		this.client = client;
+		this.scanner = scanner;
 	}
 
 	@Override
 	public void run() {
-		Scanner scanner = new Scanner(System.in);
-
-		// handle normal communication
-		String input;
-		while ((input = scanner.nextLine()) != null) {
+		// handle normal communication until the input ends
+		while (scanner.hasNextLine()) {
+			String input = scanner.nextLine();
 			//ignore blank input
 			if (input.isBlank()) continue;
 
-			//send trimmed input
-			send(input.trim());
+			//send trimmed input, through the client because the heartbeat writes to the same socket
+			client.send(input.trim());
 
 			//end thread if the user logs out
 			if (input.equals("LOGOUT")) return;
@@ -146,21 +244,63 @@ class TypeThread extends Thread {
 }
 
 class WriteThread extends Thread {
+	private final ChatClient client;
 	private Socket socket;
+	private DataInputStream in;
+	private final FrameReader frames;
+	private boolean binary;
+	//names of the ids in the frames, only used by this thread
+	private final Map<Integer, String> users = new HashMap<>();
+	private final Map<Integer, String> rooms = new HashMap<>();
 
-	public WriteThread(Socket socket) {
-		this.socket = socket;
+	public WriteThread(ChatClient client, DataInputStream in, FrameReader frames) {
+		this.client = client;
+		this.socket = client.socket;
+		this.in = in;
+		this.frames = frames;
+		this.binary = client.binary;
+	}
+
+	/**
+	 * helper method that turns a frame into the text the server would have sent
+	 *
+	 * @param frame from the server
+	 * @return text to be shown, null if there is nothing to show
+	 */
+	private String format(Frame frame) {
+		switch (frame.type()) {
+			case Frame.USER -> {
+				users.put(frame.sender(), frame.payload());
+				return null;
+			}
+			case Frame.JOINED -> users.put(frame.sender(), frame.payload());
+			case Frame.ROOM_JOINED -> rooms.put(frame.room(), frame.payload());
+		}
+		String text = Message.render(frame.type(), users.getOrDefault(frame.sender(), "#" + frame.sender()),
+				rooms.getOrDefault(frame.room(), "room " + frame.room()), frame.payload());
+		//only the user that left, a LEFT that is late must not remove the next user with the same id
+		if (frame.type() == Frame.LEFT) users.remove(frame.sender(), frame.payload());
+		if (frame.type() == Frame.ROOM_LEFT) rooms.remove(frame.room());
+		return text;
 	}
 
 	@Override
 	public void run() {
 		try {
-			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
 			// handle normal communication
-			String input;
-			while ((input = in.readLine()) != null) {
-				System.out.println(input);
+			if (binary) {
+				Frame frame;
+				while ((frame = frames.read()) != null) {
+					if (client.heartbeat(frame.type() == Frame.RAW ? frame.payload() : null)) continue;
+					String text = format(frame);
+					if (text != null) System.out.println(text);
+				}
+			} else {
+				String input;
+				while ((input = ChatClient.readLine(in)) != null) {
+					if (client.heartbeat(input)) continue;
+					System.out.println(input);
+				}
 			}
 
 			//close socket
@@ -170,6 +310,8 @@ class WriteThread extends Thread {
 			// handled by the logout method
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			frames.close();
 		}
 	}
 }
\ No newline at end of file
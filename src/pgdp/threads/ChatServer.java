@@ -1,279 +1,580 @@
 package pgdp.threads;
 
-import java.io.BufferedReader;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatServer {
+	//connections the operating system accepts before the server gets to them, the default of 50 is too small
+	//for hundreds of clients connecting at once, for example when a ClientLoop opens its sessions
+	private static final int BACKLOG = 1024;
+
 	private ServerSocket server;
-	static List<Connection> connections = new ArrayList<>();
-	static HashMap<String, Connection> userConnection = new HashMap<>();
-	private boolean running;
+	private ServerSocketChannel serverChannel;
+	private final ServerConfig config;
+	private final SessionRegistry registry = new SessionRegistry();
+	private final RoomRegistry rooms;
+	private final ServerMetrics metrics = new ServerMetrics();
+	private final EventLog log;
+	private final RateLimiter limiter;
+	private MessageJournal journal;
+	private MetricsEndpoint metricsEndpoint;
+	private Cluster cluster;
+	//checks all connections for silent clients, null if they are not checked
+	private TimerWheel heartbeats;
+	private final HistoryRing recent;
+	private volatile boolean running;
+	//set once stop() was called, users that leave while the connections are drained are not announced anymore
+	private volatile boolean stopping;
+	private ObjectName metricsName;
+	//registers the metrics with JMX, creating the platform MBean server takes longer than the rest of the startup,
+	//so it runs in the background while the server already accepts connections
+	private Thread metricsRegistration;
+	//threads of the blocking connections or event loops of the channels, set by the thread that accepts
+	private volatile ExecutorService executor;
+	private volatile EventLoop[] loops;
 
 	public ChatServer() {
 		this("3000");
 	}
 
+	public ChatServer(String portNumber) {
+		this(portNumber, new ServerConfig());
+	}
+
 	/**
 	 * standard constructor that checks validity of parameters
+	 * accepts connections on the calling thread until the server is stopped
+	 * fails with an UncheckedIOException if the port, or any other port or directory that is configured,
+	 * cannot be opened, for example because it is in use
 	 *
 	 * @param portNumber of server
+	 * @param config     settings of the server
 	 */
-	public ChatServer(String portNumber) {
+	public ChatServer(String portNumber, ServerConfig config) {
+		this(portNumber, config, true);
+	}
+
+	/**
+	 * helper constructor that checks the port before anything is started
+	 */
+	private ChatServer(String portNumber, ServerConfig config, boolean block) {
+		this(supported(config), parsePort(portNumber), block);
+	}
+
+	/**
+	 * helper constructor that opens the port and, if asked to, accepts connections on the calling thread
+	 */
+	private ChatServer(ServerConfig config, int port, boolean block) {
+		this(config);
+		try {
+			if (config.getMode() == ServerConfig.Mode.NIO) {
+				this.serverChannel = ServerSocketChannel.open();
+				this.serverChannel.bind(new InetSocketAddress(port), BACKLOG);
+			} else {
+				this.server = new ServerSocket(port, BACKLOG);
+			}
+		} catch (IOException e) {
+			log.error(null, null, "opening port " + port, e);
+			//the journal, the heartbeat and the cluster are already running, a server without a port is of no use
+			stop();
+			throw new UncheckedIOException("port " + port + " cannot be opened", e);
+		}
+		registerMetrics(port == 0 ? getPort() : port);
+		if (block) this.run();
+	}
+
+	/**
+	 * fails before anything is started instead of quietly serving VIRTUAL with platform threads
+	 *
+	 * @param config settings of the server
+	 * @return the same settings, if this Java version can run them
+	 */
+	private static ServerConfig supported(ServerConfig config) {
+		if (config.getMode() == ServerConfig.Mode.VIRTUAL && !virtualThreadsSupported())
+			throw new IllegalArgumentException("mode VIRTUAL needs Java 21, this is Java " + Runtime.version().feature());
+		return config;
+	}
+
+	/**
+	 * @param portNumber of server, 0 for any free port
+	 * @return the port as a number
+	 */
+	private static int parsePort(String portNumber) {
 		if (portNumber.isBlank())
 			throw new IllegalArgumentException("arguments cannot be blank");
-		int port;
 		try {
-			port = Integer.parseInt(portNumber);
+			return Integer.parseInt(portNumber);
 		} catch (NumberFormatException exc) {
 			throw new IllegalArgumentException("port number invalid");
 		}
+	}
 
-		try {
-			this.server = new ServerSocket(port);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		this.running = true;
-		this.run();
+	/**
+	 * start a server that accepts connections on a thread of its own
+	 * servers started like this share nothing, so any number of them can run in one JVM, for example in tests
+	 * fails with an UncheckedIOException if the port, or any other port or directory that is configured,
+	 * cannot be opened, for example because it is in use
+	 *
+	 * @param portNumber of server, 0 for any free port, which getPort() tells afterwards
+	 * @param config     settings of the server
+	 * @return the running server, stop it with stop()
+	 */
+	public static ChatServer start(String portNumber, ServerConfig config) {
+		ChatServer server = new ChatServer(portNumber, config, false);
+		new Thread(server::run, "chat-server-" + server.getPort()).start();
+		return server;
 	}
 
 	/**
-	 * helper method to start the server
+	 * create a server without opening a port, its clients connect in memory with connect()
+	 * everything else, like the journal and the heartbeat, runs as configured, stop it with stop()
+	 * fails with an UncheckedIOException if the journal, the metrics endpoint or the cluster cannot be opened
+	 *
+	 * @param config settings of the server
 	 */
-	private void run() {
-		System.out.println("Server started");
+	ChatServer(ServerConfig config) {
+		//checked before anything is started
+		if (config.getClusterPort() > 0 && config.getClusterSecret() == null)
+			throw new IllegalArgumentException("a cluster needs a shared secret");
+		this.config = config;
+		this.rooms = new RoomRegistry(config.getBackfill());
+		this.limiter = new RateLimiter(config);
+		this.recent = config.getBackfill() > 0 ? new HistoryRing(config.getBackfill()) : null;
 		try {
-			while (running) {
-				//accept all connections and create a thread for them
-				Connection connection = new Connection(this.server.accept());
-				connection.start();
-				connections.add(connection);
+			this.log = EventLog.open(config.getLogFile());
+		} catch (IOException e) {
+			throw new IllegalArgumentException("log file cannot be opened: " + e.getMessage());
+		}
 
-				//limit number of connections to 50
-				running = connections.size() < 50;
+		try {
+			if (config.getJournalDir() != null) {
+				this.journal = new MessageJournal(config.getJournalDir(), log);
+			}
+
+			if (config.getMetricsPort() > 0) {
+				this.metricsEndpoint = new MetricsEndpoint(metrics, config.getMetricsPort());
+			}
+
+			if (config.getHeartbeatMillis() > 0) {
+				//the timeouts do not need to be more precise than a tenth of the heartbeat
+				long tick = Math.max(10, Math.min(1000, config.getHeartbeatMillis() / 10));
+				this.heartbeats = new TimerWheel(tick, TimeUnit.MILLISECONDS, 512, "heartbeat");
 			}
 
-			//close server
-			server.close();
+			if (config.getClusterPort() > 0) {
+				this.cluster = new Cluster(this, config);
+				this.cluster.start();
+			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error(null, null, "starting", e);
+			//a server without a part that was configured is of no use, close the parts that already run
+			if (cluster != null) cluster.stop();
+			if (heartbeats != null) heartbeats.stop();
+			if (metricsEndpoint != null) metricsEndpoint.stop();
+			if (journal != null) journal.close();
+			log.close();
+			throw new UncheckedIOException("server cannot be started: " + e.getMessage(), e);
 		}
+		this.running = true;
 	}
 
 	/**
-	 * start server
+	 * @return port the server accepts connections on, -1 if it only has connections in memory
+	 */
+	public int getPort() {
+		if (server != null) return server.getLocalPort();
+		if (serverChannel != null) return serverChannel.socket().getLocalPort();
+		return -1;
+	}
+
+	/**
+	 * connect a client in memory, like a socket that was just accepted
+	 * a client above the limit gets the line a rejected socket would get and is closed right away
 	 *
-	 * @param args port
+	 * @return the connection, the client reads and writes through its streams
 	 */
-	public static void main(String[] args) {
-		if (args.length < 1) {
-			new ChatServer();
-		} else {
-			new ChatServer(args[0]);
+	LocalConnection connect() {
+		if (!running)
+			throw new IllegalStateException("server is stopped");
+		LocalConnection connection = new LocalConnection(this);
+		if (!registry.add(connection, config.getMaxConnections())) {
+			metrics.connectionRejected();
+			connection.reject(rejection());
+			return connection;
 		}
+		metrics.connectionOpened();
+		connection.opened();
+		return connection;
+	}
+
+	/**
+	 * @return connections and usernames of this server
+	 */
+	SessionRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @return rooms of this server
+	 */
+	RoomRegistry getRooms() {
+		return rooms;
+	}
+
+	/**
+	 * @return journal of all messages, null if the server keeps no history
+	 */
+	MessageJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * @return recent messages to everyone, null if none are kept
+	 */
+	HistoryRing getRecent() {
+		return recent;
+	}
+
+	/**
+	 * @return wheel that checks the connections for silent clients, null if they are not checked
+	 */
+	TimerWheel getHeartbeats() {
+		return heartbeats;
+	}
+
+	/**
+	 * @return this server as node of a cluster, null if it is on its own
+	 */
+	Cluster getCluster() {
+		return cluster;
+	}
+
+	ServerConfig getConfig() {
+		return config;
 	}
-}
 
-class Connection extends Thread {
-	//SimpleDateFormat to make the date look nice
-	private static SimpleDateFormat dateFormat = new SimpleDateFormat("EEEE, dd.MM.yyyy HH:mm");
-	private Socket socket;
-	private String username;
-	private Date connectedSince;
+	ServerMetrics getMetrics() {
+		return metrics;
+	}
 
-	public Connection(Socket socket) {
-		this.socket = socket;
-		this.connectedSince = new Date();
+	/**
+	 * @return log of the connects, logins, disconnects and errors of this server
+	 */
+	EventLog getLog() {
+		return log;
 	}
 
-	public String getUsername() {
-		return username;
+	/**
+	 * @return executor of the blocking connections, null before the first accept and in mode NIO
+	 */
+	ExecutorService getExecutor() {
+		return executor;
 	}
 
-	public Date getConnectedSince() {
-		return connectedSince;
+	RateLimiter getLimiter() {
+		return limiter;
 	}
 
 	/**
-	 * send a message to the socket
+	 * helper method that shows the metrics through JMX, named after the port so many servers can run in one JVM
+	 * registered in the background, awaitMetrics() waits for it
 	 *
-	 * @param msg to be sent
+	 * @param port of the server
+	 */
+	private void registerMetrics(int port) {
+		metricsRegistration = new Thread(() -> {
+			try {
+				ObjectName name = new ObjectName("pgdp.threads:type=ChatServer,port=" + port);
+				ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+				this.metricsName = name;
+			} catch (JMException e) {
+				log.info("Metrics are not available through JMX: " + e.getMessage());
+			}
+		}, "metrics-jmx");
+		metricsRegistration.setDaemon(true);
+		metricsRegistration.start();
+	}
+
+	/**
+	 * wait until the metrics are registered with JMX, which happens in the background after the port was opened
+	 */
+	void awaitMetrics() throws InterruptedException {
+		if (metricsRegistration != null) metricsRegistration.join();
+	}
+
+	/**
+	 * @return if the server accepts connections, false once stop() was called
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return if stop() was called
+	 */
+	boolean isStopping() {
+		return stopping;
+	}
+
+	/**
+	 * stop the server without losing what was already sent
+	 * no more connections are accepted, every user is told and its connection is closed once everything
+	 * queued for it has been written, connections that take longer than the drain timeout are cut off
+	 * afterwards the journal, the metrics and the cluster links are closed as well
+	 * only the first call does anything, later ones return right away
 	 */
-	private void send(String msg) {
+	public void stop() {
+		synchronized (this) {
+			if (!running) return;
+			running = false;
+			stopping = true;
+		}
+		log.info("Server stopping");
+		closeListener();
+		//the other nodes forget the users of this one right away instead of relaying to them
+		if (cluster != null) cluster.stop();
+
+		Message goodbye = Message.info("The server is shutting down, goodbye!");
+		for (Connection connection : registry.connections()) {
+			connection.send(goodbye);
+			connection.close();
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getDrainMillis());
 		try {
-			PrintWriter output = new PrintWriter(this.socket.getOutputStream());
-			output.println(msg);
-			output.flush();
+			while (registry.size() > 0 && deadline - System.nanoTime() > 0) {
+				Thread.sleep(10);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Connection connection : registry.connections()) {
+			connection.abort();
+		}
+
+		if (heartbeats != null) heartbeats.stop();
+		if (executor != null) executor.shutdown();
+		if (loops != null) {
+			for (EventLoop loop : loops) {
+				if (loop != null) loop.shutdown();
+			}
+		}
+		if (metricsEndpoint != null) metricsEndpoint.stop();
+		try {
+			awaitMetrics();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (metricsName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+			} catch (JMException e) {
+				//already gone
+			}
+		}
+		if (journal != null) journal.close();
+		log.info("Server stopped");
+		log.close();
+	}
+
+	/**
+	 * helper method that closes the listening socket, which ends the accepting loop
+	 */
+	private void closeListener() {
+		try {
+			if (server != null) server.close();
+			if (serverChannel != null) serverChannel.close();
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error(null, null, "closing the listener", e);
 		}
 	}
 
 	/**
-	 * helper function that sends msg to everyone but oneself
-	 *
-	 * @param msg to be sent
+	 * helper method to start the server
 	 */
-	private void sendToOthers(String msg) {
-		for (Connection connection : ChatServer.connections) {
-			if (connection.getUsername() == null || getUsername() == null) continue;
-			if (!connection.getUsername().equals(getUsername())) {
-				connection.send(msg);
+	private void run() {
+		log.info("Server started");
+		if (config.getMode() == ServerConfig.Mode.NIO) {
+			runEventLoops();
+			return;
+		}
+		ExecutorService executor = createExecutor();
+		this.executor = executor;
+		try {
+			while (running) {
+				//accept all connections and give each of them a reading and a writing thread
+				Socket socket = this.server.accept();
+				if (!running) {
+					socket.close();
+					break;
+				}
+				SocketConnection connection = new SocketConnection(this, socket);
+				if (!registry.add(connection, config.getMaxConnections())) {
+					reject(socket);
+					continue;
+				}
+				metrics.connectionOpened();
+				executor.execute(connection);
+				executor.execute(connection::write);
 			}
+		} catch (IOException e) {
+			//closing the listening socket is how stop() ends the loop
+			if (running) log.error(null, null, "accepting", e);
 		}
+		stop();
 	}
 
 	/**
-	 * string formatter for regular messages
+	 * helper method that creates the executor running the blocking connections
+	 * virtual threads only take memory for the stack they actually use, so thousands of mostly idle users are cheap
 	 *
-	 * @param user that sent the message
-	 * @param msg
-	 * @return formatted string
+	 * @return executor with one new thread per connection
 	 */
-	private String messageFormat(String user, String msg) {
-		return String.format("%s%s%s❯ %s", ConsoleColors.YELLOW_BOLD_BRIGHT, username, ConsoleColors.RESET, msg);
+	private ExecutorService createExecutor() {
+		//checked when the server was created
+		if (config.getMode() == ServerConfig.Mode.VIRTUAL) return virtualThreadExecutor();
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newCachedThreadPool(task -> new Thread(task, "connection-" + count.getAndIncrement()));
 	}
 
 	/**
-	 * string formatter for private messages
-	 *
-	 * @param user
-	 * @param msg
-	 * @return formatted string
+	 * @return if this Java version has virtual threads, they need Java 21
 	 */
-	private String privateMessageFormat(String user, String msg) {
-		return String.format("%s%s%s❯❯ %s", ConsoleColors.YELLOW_BOLD_BRIGHT, user, ConsoleColors.RESET, msg);
+	static boolean virtualThreadsSupported() {
+		return VirtualThreads.FACTORY != null;
 	}
 
 	/**
-	 * string formatter for information messages
-	 *
-	 * @param msg
-	 * @return formatted string
+	 * @return executor with one new virtual thread per task, null if this Java version has no virtual threads
 	 */
-	private String infoFormat(String msg) {
-		return String.format("%s%s%s", ConsoleColors.WHITE_BOLD, msg, ConsoleColors.RESET);
+	static ExecutorService virtualThreadExecutor() {
+		if (VirtualThreads.FACTORY == null) return null;
+		try {
+			return (ExecutorService) VirtualThreads.FACTORY.invoke();
+		} catch (Throwable e) {
+			return null;
+		}
 	}
 
 	/**
-	 * string formatter for error messages
-	 *
-	 * @param msg
-	 * @return formatted string
+	 * looks up the factory of virtual threads once, in a class of its own so servers in other modes never do
+	 * the project is built for Java 17, so it cannot be called directly
 	 */
-	private String errorFormat(String msg) {
-		return String.format("%s⚠ ERROR: %s%s", ConsoleColors.RED_BOLD_BRIGHT, msg, ConsoleColors.RESET);
+	private static final class VirtualThreads {
+		static final MethodHandle FACTORY = find();
+
+		private static MethodHandle find() {
+			try {
+				return MethodHandles.publicLookup().findStatic(Executors.class,
+						"newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+			} catch (ReflectiveOperationException e) {
+				return null;
+			}
+		}
 	}
 
 	/**
-	 * string formatter for penguin facts
+	 * helper method that tells a client the server is full and closes its socket
 	 *
-	 * @param fact
-	 * @return formatted string
+	 * @param socket of the client
 	 */
-	private String pinguFormat(String fact) {
-		return String.format("%s%nDid you know: %s%n%n%s", ConsoleColors.BLUE_BACKGROUND, fact, ConsoleColors.RESET);
+	private void reject(Socket socket) {
+		metrics.connectionRejected();
+		try (socket) {
+			OutputStream output = socket.getOutputStream();
+			output.write(rejection());
+			output.flush();
+		} catch (IOException e) {
+			//the client is turned away anyway
+		}
 	}
 
 	/**
-	 * check if username is valid
-	 * cannot be blank, contain spaces, or already be in use
+	 * helper method that tells a client the server is full and closes its channel
 	 *
-	 * @param input username
-	 * @return invalid username
+	 * @param channel of the client
+	 */
+	private void reject(SocketChannel channel) {
+		metrics.connectionRejected();
+		try (channel) {
+			channel.write(ByteBuffer.wrap(rejection()));
+		} catch (IOException e) {
+			//the client is turned away anyway
+		}
+	}
+
+	/**
+	 * @return the line sent to clients that are turned away
 	 */
-	private boolean inputInvalid(String input) {
-		return input.isBlank() || input.contains(" ") || ChatServer.userConnection.containsKey(input);
+	private byte[] rejection() {
+		return Message.error(String.format("Server is full, only %d users are allowed", config.getMaxConnections())).bytes();
 	}
 
 	/**
-	 * run method of thread
+	 * helper method that accepts connections and hands them to the event loops round robin
+	 * the event loops do all the reading and writing without blocking
 	 */
-	@Override
-	public void run() {
-		System.out.printf("Instance started | %s | on %s %n", socket.getInetAddress(), dateFormat.format(new Date()));
+	private void runEventLoops() {
+		EventLoop[] loops = new EventLoop[config.getEventLoops()];
+		this.loops = loops;
 		try {
-			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-			//welcome procedure consists of getting username and welcoming user
-			String username;
-			do {
-				//request username from client
-				send("ENTER_USERNAME");
-				username = in.readLine();
-			} while (inputInvalid(username));
-
-			//save username if it is valid
-			this.username = username;
-			ChatServer.userConnection.put(username, this);
-			send("VALID");
-
-			//welcome user
-			send(infoFormat(String.format("Welcome %s!", username)));
-			sendToOthers(infoFormat(String.format("%s joined the chat!", username)));
-
-			String input;
-			while ((input = in.readLine()) != null) {
-				if (input.indexOf("@") == 0) {
-					//find the index where the message begins
-					int separation = input.indexOf(" ");
-					try {
-						//get the username
-						String user = input.substring(1, separation);
-						if (!ChatServer.userConnection.containsKey(user)) {
-							send(errorFormat(String.format("%s could not be found!", user)));
-							continue;
-						}
-						//send a message to that user
-						ChatServer.userConnection.get(user).send(privateMessageFormat(username, input.substring(separation + 1)));
-					} catch (StringIndexOutOfBoundsException exc) {
-						send(errorFormat("Must supply a message"));
-					}
-				} else if (input.equals("WHOIS")) {
-					//create a list of connected users and send it to yourself
-					StringBuilder builder = new StringBuilder();
-					for (Connection connection : ChatServer.connections) {
-						builder.append(String.format("- %s connected since %s%n", connection.getUsername(), dateFormat.format(connection.getConnectedSince())));
-					}
-					send(builder.toString());
-				} else if (input.equals("LOGOUT")) {
-					//say goodbye to everyone and then close the socket
-					send(infoFormat(String.format("Goodbye %s!", username)));
-					socket.close();
-				} else if (input.equals("PENGU")) {
-					//send some great penguin facts
-					send(pinguFormat(PinguinFacts.getRandomFact()));
-				} else {
-					//send a message to everyone except yourself
-					sendToOthers(messageFormat(username, input));
-				}
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop("event-loop-" + i, log);
+				loops[i].start();
 			}
 
-			//close the connection
-			in.close();
-			socket.close();
-		} catch (SocketException e) {
-			//do nothing :)
-			//because I already handle the exception by removing users
+			int next = 0;
+			while (running) {
+				SocketChannel channel = serverChannel.accept();
+				if (!running) {
+					channel.close();
+					break;
+				}
+				EventLoop loop = loops[next];
+				ChannelConnection connection = new ChannelConnection(this, channel, loop);
+				if (!registry.add(connection, config.getMaxConnections())) {
+					reject(channel);
+					continue;
+				}
+				metrics.connectionOpened();
+				channel.socket().setTcpNoDelay(true);
+				next = (next + 1) % loops.length;
+				loop.execute(connection::register);
+			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			//closing the listening channel is how stop() ends the loop
+			if (running) log.error(null, null, "accepting", e);
 		}
-		//remove users
-		ChatServer.connections.remove(this);
-		ChatServer.userConnection.remove(username);
+		stop();
+	}
 
-		//inform other users
-		sendToOthers(infoFormat(String.format("%s has left the chat!", username)));
+	/**
+	 * start server
+	 *
+	 * @param args port, followed by optional settings like mode=virtual or max=10000
+	 */
+	public static void main(String[] args) {
+		String port = args.length < 1 ? "3000" : args[0];
+		ServerConfig config = new ServerConfig().parse(Arrays.copyOfRange(args, Math.min(1, args.length), args.length));
+		ChatServer server = start(port, config);
+		//stopping the process, for example during a deploy, drains the connections first
+		Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "chat-server-shutdown"));
 	}
 }
-    
@@ -1,26 +1,121 @@
 package pgdp.threads;
 
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class ChatTest {
+	//the server on the default port that the socket tests of ChatClient() talk to
+	private static ChatServer defaultServer;
+
 	@BeforeAll
 	static void setUpServer() {
-		new Thread(ChatServer::new).start();
+		defaultServer = ChatServer.start("3000", new ServerConfig());
+	}
+
+	@AfterAll
+	static void stopServer() {
+		defaultServer.stop();
+	}
+
+	/**
+	 * helper method that waits until a server accepts connections
+	 *
+	 * @param port of the server
+	 */
+	static void awaitServer(int port) {
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket("localhost", port).close();
+				return;
+			} catch (IOException e) {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException exc) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * helper method that reads lines until one contains the expected text
+	 * skips what else the server sends in between, like announcements of other users or backfilled messages
+	 *
+	 * @return the line that contains the text
+	 */
+	static String readLineContaining(BufferedReader in, String expected) throws IOException {
+		String line;
+		do {
+			line = in.readLine();
+		} while (line != null && !line.contains(expected));
+		return line;
 	}
 
 	@Test
 	@DisplayName("Setup with weird inputs")
-	void setUpWeirdInputs() {
+	void setUpWeirdInputs() throws IOException {
 		Assertions.assertThrows(IllegalArgumentException.class, () -> new ChatServer("    "));
 		Assertions.assertThrows(IllegalArgumentException.class, () -> new ChatServer("invalid"));
+
+		//a port that is in use is reported to the caller instead of returning a server that cannot accept
+		ChatServer server = ChatServer.start("0", new ServerConfig());
+		for (ServerConfig.Mode mode : ServerConfig.Mode.values()) {
+			if (mode == ServerConfig.Mode.VIRTUAL && !ChatServer.virtualThreadsSupported()) continue;
+			Assertions.assertThrows(UncheckedIOException.class,
+					() -> ChatServer.start(String.valueOf(server.getPort()), new ServerConfig().mode(mode)));
+		}
+		server.stop();
+
+		//so is a cluster port that is in use, and the metrics endpoint that was already opened is closed again
+		int metricsPort;
+		try (ServerSocket free = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			metricsPort = free.getLocalPort();
+		}
+		try (ServerSocket taken = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			ServerConfig config = new ServerConfig().metricsPort(metricsPort).clusterPort(taken.getLocalPort()).clusterSecret("penguins");
+			Assertions.assertThrows(UncheckedIOException.class, () -> ChatServer.start("0", config));
+		}
+		new ServerSocket(metricsPort, 50, InetAddress.getLoopbackAddress()).close();
 	}
 
 	@Test
@@ -188,4 +283,1281 @@ class ChatTest {
 		//close socket
 		c1.socket.close();
 	}
-}
\ No newline at end of file
+
+	@Test
+	@DisplayName("Invalid username inputs in memory")
+	void invalidUsernameInMemory() throws IOException {
+		ChatServer server = new ChatServer(new ServerConfig());
+		//setup first client
+		LocalConnection c1 = server.connect();
+		PrintWriter out1 = new PrintWriter(c1.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.getInputStream()));
+
+		//setup second client
+		LocalConnection c2 = server.connect();
+		PrintWriter out2 = new PrintWriter(c2.getOutputStream(), true);
+		BufferedReader in2 = new BufferedReader(new InputStreamReader(c2.getInputStream()));
+
+		//test invalid inputs for the first client
+		in1.readLine();
+		out1.println("te st");
+		Assertions.assertEquals("ENTER_USERNAME", in1.readLine(), "Cannot contain spaces");
+		out1.println("    ");
+		Assertions.assertEquals("ENTER_USERNAME", in1.readLine(), "Cannot be blank");
+		out1.println("username");
+		Assertions.assertEquals("VALID", in1.readLine(), "Valid username was rejected");
+
+		//check the second client
+		in2.readLine();
+		out2.println("username");
+		Assertions.assertEquals("ENTER_USERNAME", in2.readLine(), "Should not be able to enter same name twice");
+		out2.println("username2");
+		Assertions.assertEquals("VALID", in2.readLine(), "Valid username was rejected");
+
+		// close sockets
+		c1.disconnect();
+		c2.disconnect();
+		server.stop();
+	}
+
+	@Test
+	@DisplayName("Full conversation between two clients in memory")
+	void normalConversationInMemory() throws IOException {
+		ChatServer server = new ChatServer(new ServerConfig());
+		//setup first client
+		LocalConnection c1 = server.connect();
+		PrintWriter out1 = new PrintWriter(c1.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.getInputStream()));
+
+		//setup second client
+		LocalConnection c2 = server.connect();
+		PrintWriter out2 = new PrintWriter(c2.getOutputStream(), true);
+		BufferedReader in2 = new BufferedReader(new InputStreamReader(c2.getInputStream()));
+
+		//test invalid inputs for the first client
+		in1.readLine();
+		out1.println("username");
+		in1.readLine();
+		String result = in1.readLine();
+		Assertions.assertTrue(result.contains("Welcome username!"), "User was not welcomed\nResult: " + result);
+
+		//check the second client
+		in2.readLine();
+		out2.println("username2");
+		in2.readLine();
+		in2.readLine();
+
+		result = in1.readLine();
+		Assertions.assertTrue(result.contains("username2 joined the chat!"), "Other user was not welcomed\nResult: " + result);
+
+		out1.println("hello");
+		result = in2.readLine();
+		Assertions.assertTrue(result.contains("username") && result.contains("hello"), "Message was not sent properly \nResult: " + result);
+
+		out2.println("@username secret");
+		result = in1.readLine();
+		Assertions.assertTrue(result.contains("username2") && result.contains("secret"), "Private message not sent properly\nResult: " + result);
+
+		out1.println("LOGOUT");
+		result = in1.readLine();
+		Assertions.assertTrue(result.contains("Goodbye username!"), "User was not greeted when leaving\nResult: " + result);
+		result = in2.readLine();
+		Assertions.assertTrue(result.contains("username has left"), "Other users were not informed of the user leaving\nResult: " + result);
+
+		// close sockets
+		c1.disconnect();
+		c2.disconnect();
+		server.stop();
+	}
+
+	@Test
+	@DisplayName("PENGU facts in memory")
+	void penguFactsInMemory() throws IOException {
+		ChatServer server = new ChatServer(new ServerConfig());
+		//setup first client
+		LocalConnection c1 = server.connect();
+		PrintWriter out1 = new PrintWriter(c1.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.getInputStream()));
+
+		//test if PENGU facts are returned
+		in1.readLine();
+		out1.println("username");
+		in1.readLine();
+		in1.readLine();
+		out1.println("PENGU");
+		in1.readLine();
+		Assertions.assertTrue(in1.readLine().contains("Did you know:"));
+
+		//close socket
+		c1.disconnect();
+		server.stop();
+	}
+
+	@Test
+	@DisplayName("WHOIS in memory")
+	void whoisInMemory() throws IOException {
+		ChatServer server = new ChatServer(new ServerConfig());
+		//setup first client
+		LocalConnection c1 = server.connect();
+		PrintWriter out1 = new PrintWriter(c1.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.getInputStream()));
+
+		//test if WHOIS is returned correctly
+		in1.readLine();
+		out1.println("username");
+		in1.readLine();
+		in1.readLine();
+		out1.println("WHOIS");
+		String result = in1.readLine();
+		Assertions.assertTrue(result.contains("username"));
+
+		//close socket
+		c1.disconnect();
+		server.stop();
+	}
+
+	@Test
+	@DisplayName("Private messages in memory")
+	void privateMessagesInMemory() throws IOException {
+		ChatServer server = new ChatServer(new ServerConfig());
+		//setup first client
+		LocalConnection c1 = server.connect();
+		PrintWriter out1 = new PrintWriter(c1.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.getInputStream()));
+
+		//test if private messages can be sent
+		in1.readLine();
+		out1.println("username");
+		in1.readLine();
+		in1.readLine();
+		out1.println("@username secret");
+		String result = in1.readLine();
+		Assertions.assertTrue(result.contains("username") && result.contains("secret"), "Private message not sent properly\nResult: " + result);
+
+		//test if invalid inputs fail for non existent user
+		out1.println("@doesnotexist secret");
+		result = in1.readLine();
+		Assertions.assertTrue(result.contains("doesnotexist could not be found"), "Should fail when sending to non existent user\nResult: " + result);
+
+		//test if invalid inputs fail for empty message
+		out1.println("@username");
+		result = in1.readLine();
+		Assertions.assertTrue(result.contains("Must supply a message"), "Should fail when sending empty messages\nResult: " + result);
+
+		//close socket
+		c1.disconnect();
+		server.stop();
+	}
+
+	@Test
+	@DisplayName("Conversation on the event loop server")
+	void eventLoopConversation() throws Exception {
+		ChatServer server = ChatServer.start("0", new ServerConfig().mode(ServerConfig.Mode.NIO).eventLoops(2));
+		String port = String.valueOf(server.getPort());
+		//setup two clients on different event loops
+		ChatClient c1 = new ChatClient("localhost", port);
+		c1.socket.setSoTimeout(5000);
+		PrintWriter out1 = new PrintWriter(c1.socket.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.socket.getInputStream()));
+		ChatClient c2 = new ChatClient("localhost", port);
+		c2.socket.setSoTimeout(5000);
+		PrintWriter out2 = new PrintWriter(c2.socket.getOutputStream(), true);
+		BufferedReader in2 = new BufferedReader(new InputStreamReader(c2.socket.getInputStream()));
+
+		//handshake works like on the blocking server
+		Assertions.assertEquals("ENTER_USERNAME", in1.readLine());
+		out1.println("no space");
+		Assertions.assertEquals("ENTER_USERNAME", in1.readLine(), "Cannot contain spaces");
+		out1.println("loop1");
+		Assertions.assertEquals("VALID", in1.readLine(), "Valid username was rejected");
+		Assertions.assertTrue(in1.readLine().contains("Welcome loop1!"), "User was not welcomed");
+		Assertions.assertEquals("ENTER_USERNAME", in2.readLine());
+		out2.println("loop2");
+		Assertions.assertEquals("VALID", in2.readLine(), "Valid username was rejected");
+		in2.readLine();
+		Assertions.assertNotNull(readLineContaining(in1, "loop2 joined the chat!"), "Other user was not welcomed");
+
+		//broadcasts and private messages
+		out1.println("hello");
+		Assertions.assertNotNull(readLineContaining(in2, "hello"), "Message was not sent properly");
+		out2.println("@loop1 secret");
+		Assertions.assertNotNull(readLineContaining(in1, "secret"), "Private message not sent properly");
+		out1.println("WHOIS");
+		Assertions.assertNotNull(readLineContaining(in1, "loop2 connected since"), "WHOIS is missing a user");
+
+		//logout closes the connection after the goodbye was written
+		out1.println("LOGOUT");
+		Assertions.assertNotNull(readLineContaining(in1, "Goodbye loop1!"), "User was not greeted when leaving");
+		Assertions.assertNull(in1.readLine(), "Connection was not closed");
+		Assertions.assertNotNull(readLineContaining(in2, "loop1 has left"), "Other users were not informed of the user leaving");
+
+		c1.socket.close();
+		c2.socket.close();
+		server.stop();
+
+		//a task or a handler that throws is logged and only fails itself, the loop keeps running
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		EventLog log = new EventLog(errors, 64);
+		EventLoop loop = new EventLoop("test-loop", log);
+		loop.start();
+		Pipe pipe = Pipe.open();
+		AtomicBoolean failed = new AtomicBoolean();
+		loop.execute(() -> {
+			throw new IllegalStateException("broken task");
+		});
+		loop.execute(() -> {
+			try {
+				pipe.source().configureBlocking(false);
+				pipe.source().register(loop.selector(), SelectionKey.OP_READ, new EventLoop.Handler() {
+					@Override
+					public void handle(SelectionKey key) {
+						throw new IllegalStateException("broken handler");
+					}
+
+					@Override
+					public void failed(Exception exc) {
+						failed.set(exc.getMessage().equals("broken handler"));
+						pipe.source().keyFor(loop.selector()).cancel();
+					}
+				});
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		pipe.sink().write(ByteBuffer.wrap(new byte[]{1}));
+		CountDownLatch survived = new CountDownLatch(1);
+		loop.schedule(survived::countDown, TimeUnit.MILLISECONDS.toNanos(50));
+		Assertions.assertTrue(survived.await(5, TimeUnit.SECONDS), "Event loop died");
+		Assertions.assertTrue(failed.get(), "Handler was not told that it failed");
+		loop.shutdown();
+		loop.join();
+		log.close();
+		Assertions.assertTrue(errors.toString(StandardCharsets.UTF_8).contains("broken task"), errors.toString(StandardCharsets.UTF_8));
+		pipe.sink().close();
+	}
+
+	@Test
+	@DisplayName("Admission limit on the thread per connection server")
+	void admissionLimit() throws IOException {
+		ChatServer server = ChatServer.start("0", new ServerConfig().mode(ServerConfig.Mode.PLATFORM).maxConnections(1));
+		String port = String.valueOf(server.getPort());
+		ChatClient c1 = new ChatClient("localhost", port);
+		c1.socket.setSoTimeout(5000);
+		String result = new BufferedReader(new InputStreamReader(c1.socket.getInputStream())).readLine();
+		Assertions.assertEquals("ENTER_USERNAME", result);
+
+		//the second client is turned away while the first one is connected
+		ChatClient c2 = new ChatClient("localhost", port);
+		c2.socket.setSoTimeout(5000);
+		BufferedReader in2 = new BufferedReader(new InputStreamReader(c2.socket.getInputStream()));
+		result = in2.readLine();
+		Assertions.assertTrue(result.contains("Server is full"), "Client was admitted above the limit\nResult: " + result);
+		Assertions.assertNull(in2.readLine(), "Rejected client was not disconnected");
+
+		c1.socket.close();
+		c2.socket.close();
+		server.stop();
+	}
+
+	@Test
+	@DisplayName("Sessions of the virtual thread server run on virtual threads")
+	void virtualThreads() throws Exception {
+		ServerConfig config = new ServerConfig().mode(ServerConfig.Mode.VIRTUAL);
+		if (!ChatServer.virtualThreadsSupported()) {
+			//refused up front instead of quietly running on platform threads
+			Assertions.assertThrows(IllegalArgumentException.class, () -> ChatServer.start("0", config));
+			return;
+		}
+		ChatServer server = ChatServer.start("0", config);
+		ChatClient c1 = new ChatClient("localhost", String.valueOf(server.getPort()));
+		c1.socket.setSoTimeout(5000);
+		PrintWriter out1 = new PrintWriter(c1.socket.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.socket.getInputStream()));
+		in1.readLine();
+		out1.println("virtual");
+		Assertions.assertEquals("VALID", in1.readLine());
+
+		//the project is built for Java 17, so isVirtual() is only there at runtime
+		Method isVirtual = Thread.class.getMethod("isVirtual");
+		boolean virtual = server.getExecutor().submit(() -> (Boolean) isVirtual.invoke(Thread.currentThread())).get();
+		Assertions.assertTrue(virtual, "Session does not run on a virtual thread");
+		c1.socket.close();
+		server.stop();
+	}
+
+	@Test
+	@DisplayName("Overflow policies of the outbound queue")
+	void outboundQueuePolicies() throws InterruptedException {
+		ServerMetrics metrics = new ServerMetrics();
+
+		//the oldest message makes room for the new one
+		OutboundQueue dropOldest = new OutboundQueue(2, ServerConfig.OverflowPolicy.DROP_OLDEST, metrics);
+		for (int i = 1; i <= 3; i++) {
+			Assertions.assertTrue(dropOldest.offer(Message.raw("msg" + i)));
+		}
+		Assertions.assertEquals("msg2", dropOldest.poll().getText());
+		Assertions.assertEquals("msg3", dropOldest.poll().getText());
+		Assertions.assertNull(dropOldest.poll());
+
+		//the backlog is replaced by a note
+		OutboundQueue coalesce = new OutboundQueue(2, ServerConfig.OverflowPolicy.COALESCE, metrics);
+		for (int i = 1; i <= 3; i++) {
+			Assertions.assertTrue(coalesce.offer(Message.raw("msg" + i)));
+		}
+		Assertions.assertTrue(coalesce.poll().getText().contains("2 messages were skipped"));
+		Assertions.assertEquals("msg3", coalesce.take(1, TimeUnit.SECONDS).getText());
+
+		//the slow client has to go
+		OutboundQueue disconnect = new OutboundQueue(2, ServerConfig.OverflowPolicy.DISCONNECT, metrics);
+		Assertions.assertTrue(disconnect.offer(Message.raw("msg1")));
+		Assertions.assertTrue(disconnect.offer(Message.raw("msg2")));
+		Assertions.assertFalse(disconnect.offer(Message.raw("msg3")));
+
+		Assertions.assertEquals(3, metrics.getDroppedMessages());
+		Assertions.assertEquals(1, metrics.getSlowConsumers());
+		Assertions.assertEquals(2, metrics.getMaxQueueDepth());
+		Assertions.assertEquals(2, metrics.getQueuedMessages());
+	}
+
+	@Test
+	@DisplayName("Rooms")
+	void rooms() throws Exception {
+		ChatServer server = new ChatServer(new ServerConfig());
+		//setup three clients, the first two join a room
+		PrintWriter[] out = new PrintWriter[3];
+		BufferedReader[] in = new BufferedReader[3];
+		LocalConnection[] clients = new LocalConnection[3];
+		for (int i = 0; i < 3; i++) {
+			clients[i] = server.connect();
+			out[i] = new PrintWriter(clients[i].getOutputStream(), true);
+			in[i] = new BufferedReader(new InputStreamReader(clients[i].getInputStream()));
+			in[i].readLine();
+			out[i].println("room" + i);
+			Assertions.assertEquals("VALID", in[i].readLine(), "Valid username was rejected");
+		}
+		out[0].println("JOIN #penguins");
+		Assertions.assertNotNull(readLineContaining(in[0], "You joined #penguins"), "Room was not joined");
+		out[1].println("JOIN #penguins");
+		Assertions.assertNotNull(readLineContaining(in[1], "You joined #penguins"), "Room was not joined");
+		Assertions.assertNotNull(readLineContaining(in[0], "room1 joined #penguins"), "Members were not told about the new member");
+
+		//room messages only reach members
+		out[0].println("#penguins fish");
+		String result = readLineContaining(in[1], "fish");
+		Assertions.assertTrue(result.contains("#penguins") && result.contains("room0"), "Room message not sent properly\nResult: " + result);
+		out[0].println("everyone");
+		String line;
+		while (!(line = in[2].readLine()).contains("everyone")) {
+			Assertions.assertFalse(line.contains("fish"), "Room message reached a user outside of the room");
+		}
+
+		//only members can write to a room
+		out[2].println("#penguins hello");
+		Assertions.assertNotNull(readLineContaining(in[2], "You are not in #penguins"), "Non member could write to the room");
+		out[2].println("JOIN penguins");
+		Assertions.assertNotNull(readLineContaining(in[2], "not a valid room"), "Room without # was accepted");
+
+		//after leaving no more room messages arrive
+		out[1].println("PART #penguins");
+		Assertions.assertNotNull(readLineContaining(in[1], "You left #penguins"), "Room was not left");
+		Assertions.assertNotNull(readLineContaining(in[0], "room1 left #penguins"), "Members were not told about the leaving member");
+		out[1].println("#penguins hello");
+		Assertions.assertNotNull(readLineContaining(in[1], "You are not in #penguins"), "Former member could write to the room");
+
+		for (LocalConnection client : clients) {
+			client.disconnect();
+		}
+
+		//a user that is closed by another thread, like the heartbeat, while it joins rooms ends up in none of them
+		for (int round = 0; round < 50; round++) {
+			LocalConnection client = server.connect();
+			PrintWriter joining = new PrintWriter(client.getOutputStream(), true);
+			joining.println("racer" + round);
+			Thread joiner = new Thread(() -> {
+				for (int i = 0; i < 100 && !joining.checkError(); i++) {
+					joining.println("JOIN #race" + i);
+				}
+			});
+			joiner.start();
+			client.close();
+			joiner.join();
+			Assertions.assertEquals(0, server.getRooms().size(), "Closed user stayed in a room");
+		}
+		server.stop();
+	}
+
+	@Test
+	@DisplayName("Journal survives a restart")
+	void journalRecovery(@TempDir Path dir) throws Exception {
+		ByteArrayOutputStream logged = new ByteArrayOutputStream();
+		EventLog log = new EventLog(logged, 64);
+		//small segments, so the messages are spread over several files
+		MessageJournal journal = new MessageJournal(dir, 256, log);
+		for (int i = 0; i < 20; i++) {
+			journal.append(MessageJournal.LOBBY, Message.raw("lobby" + i));
+			journal.append("#room", Message.raw("room" + i));
+		}
+		journal.close();
+		Assertions.assertFalse(journal.append("#room", Message.raw("too late")), "Closed journal accepted a message");
+		Assertions.assertTrue(journal.history("#room", 5).isEmpty(), "Closed journal read its unmapped segments");
+
+		//a file that only looks like a segment is skipped instead of stopping the recovery
+		Files.writeString(dir.resolve("segment-backup.log"), "not a segment");
+		journal = new MessageJournal(dir, 256, log);
+		Assertions.assertEquals(List.of("lobby17", "lobby18", "lobby19"), journal.history(MessageJournal.LOBBY, 3));
+		Assertions.assertEquals(20, journal.history("#room", 50).size());
+		Assertions.assertTrue(journal.history("#empty", 5).isEmpty());
+
+		//new messages are appended after the recovered ones
+		Assertions.assertTrue(journal.append("#room", Message.raw("after restart")));
+		journal.close();
+		journal = new MessageJournal(dir, 256, log);
+		Assertions.assertEquals(List.of("room19", "after restart"), journal.history("#room", 2));
+		Assertions.assertEquals(0, journal.getDropped());
+		Assertions.assertFalse(journal.isFailed());
+		journal.close();
+
+		//segments that hold none of the last messages of any conversation are unmapped, while writing and after a restart
+		Path longer = dir.resolve("long");
+		journal = new MessageJournal(longer, 256, log);
+		for (int i = 0; i < 3 * MessageJournal.MAX_HISTORY; i++) {
+			journal.append("#long", Message.raw("long" + i));
+		}
+		journal.close();
+		long files;
+		try (var list = Files.list(longer)) {
+			files = list.count();
+		}
+		journal = new MessageJournal(longer, 256, log);
+		Assertions.assertTrue(journal.getMappedSegments() < files / 2, journal.getMappedSegments() + " of " + files + " segments are mapped");
+		List<String> kept = journal.history("#long", MessageJournal.MAX_HISTORY);
+		Assertions.assertEquals(MessageJournal.MAX_HISTORY, kept.size());
+		Assertions.assertEquals("long" + 2 * MessageJournal.MAX_HISTORY, kept.get(0));
+		for (int i = 0; i < 3 * MessageJournal.MAX_HISTORY; i++) {
+			journal.append("#long", Message.raw("again" + i));
+		}
+		//wait until the writer took everything, history() reads the mapped segments while it may unmap others
+		for (int i = 0; i < 100 && !journal.history("#long", 1).equals(List.of("again" + (3 * MessageJournal.MAX_HISTORY - 1))); i++) {
+			Thread.sleep(10);
+		}
+		Assertions.assertEquals("again" + 2 * MessageJournal.MAX_HISTORY, journal.history("#long", MessageJournal.MAX_HISTORY).get(0));
+		Assertions.assertTrue(journal.getMappedSegments() < files / 2, journal.getMappedSegments() + " segments are mapped while writing");
+		journal.close();
+		log.close();
+		Assertions.assertTrue(logged.toString(StandardCharsets.UTF_8).contains("segment-backup.log, it is no segment"), "Skipped file was not logged");
+	}
+
+	@Test
+	@DisplayName("HISTORY")
+	void history(@TempDir Path dir) throws IOException, InterruptedException {
+		ChatServer server = new ChatServer(new ServerConfig().journalDir(dir));
+		LocalConnection c1 = server.connect();
+		PrintWriter out1 = new PrintWriter(c1.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.getInputStream()));
+		in1.readLine();
+		out1.println("historian");
+		Assertions.assertEquals("VALID", in1.readLine(), "Valid username was rejected");
+
+		//lobby, room and private messages are kept separately
+		out1.println("first");
+		out1.println("second");
+		out1.println("JOIN #archive");
+		out1.println("#archive in the room");
+		out1.println("@historian note to self");
+		Assertions.assertNotNull(readLineContaining(in1, "note to self"));
+		//the journal is written in the background
+		Thread.sleep(200);
+
+		out1.println("HISTORY 2");
+		Assertions.assertNotNull(readLineContaining(in1, "Last 2 messages"), "History was not sent");
+		Assertions.assertTrue(in1.readLine().contains("first"), "History is missing a message");
+		Assertions.assertTrue(in1.readLine().contains("second"), "History is missing a message");
+		out1.println("HISTORY 5 #archive");
+		Assertions.assertNotNull(readLineContaining(in1, "Last 1 messages"), "Room history was not sent");
+		Assertions.assertTrue(in1.readLine().contains("in the room"), "Room history is missing a message");
+		out1.println("HISTORY 5 @historian");
+		Assertions.assertNotNull(readLineContaining(in1, "Last 1 messages"), "Private history was not sent");
+		Assertions.assertTrue(in1.readLine().contains("note to self"), "Private history is missing a message");
+		out1.println("HISTORY 5 #secret");
+		Assertions.assertNotNull(readLineContaining(in1, "You are not in #secret"), "History of a foreign room was sent");
+
+		c1.disconnect();
+		server.stop();
+	}
+
+	@Test
+	@DisplayName("Backfill of recent messages")
+	void backfill() throws IOException {
+		ChatServer server = new ChatServer(new ServerConfig().backfill(3));
+		LocalConnection c1 = server.connect();
+		PrintWriter out1 = new PrintWriter(c1.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.getInputStream()));
+		in1.readLine();
+		out1.println("early");
+		Assertions.assertEquals("VALID", in1.readLine(), "Valid username was rejected");
+		out1.println("JOIN #backfill");
+		for (int i = 1; i <= 4; i++) {
+			out1.println("fill" + i);
+			out1.println("#backfill room" + i);
+		}
+		out1.println("@early done");
+		Assertions.assertNotNull(readLineContaining(in1, "done"));
+
+		//a new user gets the last three messages right after the welcome
+		LocalConnection c2 = server.connect();
+		PrintWriter out2 = new PrintWriter(c2.getOutputStream(), true);
+		BufferedReader in2 = new BufferedReader(new InputStreamReader(c2.getInputStream()));
+		in2.readLine();
+		out2.println("late");
+		Assertions.assertEquals("VALID", in2.readLine(), "Valid username was rejected");
+		Assertions.assertTrue(in2.readLine().contains("Welcome late!"), "User was not welcomed");
+		for (int i = 2; i <= 4; i++) {
+			Assertions.assertTrue(in2.readLine().contains("fill" + i), "Backfill is missing a message");
+		}
+
+		//and the last three of a room after joining it
+		out2.println("JOIN #backfill");
+		Assertions.assertNotNull(readLineContaining(in2, "You joined #backfill"), "Room was not joined");
+		for (int i = 2; i <= 4; i++) {
+			Assertions.assertTrue(in2.readLine().contains("room" + i), "Room backfill is missing a message");
+		}
+
+		c1.disconnect();
+		c2.disconnect();
+		server.stop();
+	}
+
+	@Test
+	@DisplayName("Histogram percentiles")
+	void histogram() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 100_000; i++) {
+			histogram.record(i);
+		}
+		Assertions.assertEquals(100_000, histogram.getCount());
+		Assertions.assertEquals(100_000, histogram.getMax());
+		Assertions.assertEquals(50_000, histogram.getValueAtPercentile(50), 50_000 * 0.04);
+		Assertions.assertEquals(99_900, histogram.getValueAtPercentile(99.9), 99_900 * 0.04);
+		Assertions.assertEquals(10, histogram.getValueAtPercentile(0.01));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> histogram.getValueAtPercentile(101));
+	}
+
+	@Test
+	@DisplayName("Load generator against its own server")
+	void loadGenerator() throws InterruptedException {
+		ChatServer server = ChatServer.start("0", new ServerConfig().mode(ServerConfig.Mode.NIO));
+		LoadGenerator.Result result = new LoadGenerator().port(server.getPort()).users(20).rate(20).rooms(2)
+				.durationSeconds(1).warmupSeconds(0).mix(20, 75, 5, 0).run();
+		Assertions.assertEquals(0, result.failedUsers.sum(), "Users could not log in");
+		Assertions.assertEquals(0, result.errors.sum(), "Server reported errors");
+		Assertions.assertTrue(result.sent.sum() > 0, "Nothing was sent");
+		Assertions.assertTrue(result.delivered.sum() > 0, "Nothing was delivered");
+		Assertions.assertEquals(20, result.handshake.getCount());
+		server.stop();
+
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new LoadGenerator().parse("users=1"));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new LoadGenerator().parse("mix=1,2"));
+	}
+
+	@Test
+	@DisplayName("Metrics through JMX and Prometheus")
+	void metrics() throws Exception {
+		ChatServer server = ChatServer.start("0", new ServerConfig().mode(ServerConfig.Mode.NIO).metricsPort(3005));
+		ChatClient c1 = new ChatClient("localhost", String.valueOf(server.getPort()));
+		c1.socket.setSoTimeout(5000);
+		PrintWriter out1 = new PrintWriter(c1.socket.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.socket.getInputStream()));
+		in1.readLine();
+		out1.println("measured");
+		Assertions.assertEquals("VALID", in1.readLine(), "Valid username was rejected");
+		out1.println("@measured hello");
+		Assertions.assertNotNull(readLineContaining(in1, "hello"));
+
+		server.awaitMetrics();
+		MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("pgdp.threads:type=ChatServer,port=" + server.getPort());
+		Assertions.assertTrue((Long) beans.getAttribute(name, "Handshakes") >= 1, "Handshake was not counted");
+		Assertions.assertTrue((Long) beans.getAttribute(name, "ActiveConnections") >= 1, "Connection was not counted");
+		Assertions.assertTrue((Long) beans.getAttribute(name, "MessagesIn") >= 2, "Lines were not counted");
+		Assertions.assertTrue((Long) beans.getAttribute(name, "HandlingLatencyP99") > 0, "Latency was not measured");
+
+		String text;
+		try (InputStream input = new URL("http://localhost:3005/metrics").openStream()) {
+			text = new String(input.readAllBytes());
+		}
+		Assertions.assertTrue(text.contains("# TYPE chat_handshakes_total counter"), "Prometheus format is wrong");
+		Assertions.assertTrue(text.contains("chat_handling_seconds{quantile=\"0.99\"}"), "Latency summary is missing");
+		Assertions.assertFalse(text.contains("chat_connections_active 0\n"), "Active connection is missing");
+
+		c1.socket.close();
+		server.stop();
+	}
+
+	/**
+	 * helper method that reads frames until one has the expected type
+	 *
+	 * @return the frame with the type
+	 */
+	static Frame readFrame(DataInputStream in, byte type) throws IOException {
+		Frame frame;
+		do {
+			frame = Frame.read(in);
+		} while (frame != null && frame.type() != type);
+		return frame;
+	}
+
+	@Test
+	@DisplayName("Binary protocol next to text clients")
+	void binaryProtocol() throws IOException {
+		for (ServerConfig.Mode mode : new ServerConfig.Mode[]{ServerConfig.Mode.PLATFORM, ServerConfig.Mode.NIO}) {
+			ChatServer server = ChatServer.start("0", new ServerConfig().mode(mode));
+			String port = String.valueOf(server.getPort());
+			ChatClient c1 = new ChatClient("localhost", port);
+			c1.socket.setSoTimeout(5000);
+			PrintWriter out1 = new PrintWriter(c1.socket.getOutputStream(), true);
+			BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.socket.getInputStream(), StandardCharsets.UTF_8));
+			in1.readLine();
+			out1.println("textual" + port);
+			Assertions.assertEquals("VALID", in1.readLine(), "Valid username was rejected");
+
+			//the binary client asks for frames after the first line
+			ChatClient c2 = new ChatClient("localhost", port);
+			c2.socket.setSoTimeout(5000);
+			PrintWriter out2 = new PrintWriter(c2.socket.getOutputStream(), true);
+			DataInputStream in2 = new DataInputStream(new BufferedInputStream(c2.socket.getInputStream()));
+			Assertions.assertEquals("ENTER_USERNAME", ChatClient.readLine(in2));
+			out2.println("BINARY");
+			Assertions.assertEquals(new Frame(Frame.RAW, 0, 0, "ENTER_USERNAME"), Frame.read(in2));
+			out2.println("framed" + port);
+			Assertions.assertEquals("VALID", Frame.read(in2).payload(), "Valid username was rejected");
+			Assertions.assertEquals(Frame.INFO, Frame.read(in2).type(), "User was not welcomed");
+
+			//the user list tells the id of the text client
+			int textualId = -1;
+			while (textualId < 0) {
+				Frame user = readFrame(in2, Frame.USER);
+				if (user.payload().equals("textual" + port)) textualId = user.sender();
+			}
+			Assertions.assertTrue(textualId > 0, "User has no id");
+
+			//messages arrive without colors, the client formats them
+			out1.println("plain");
+			Frame chat = readFrame(in2, Frame.CHAT);
+			Assertions.assertEquals(new Frame(Frame.CHAT, textualId, 0, "plain"), chat);
+			Assertions.assertEquals(Message.messageFormat("textual" + port, "plain"),
+					Message.render(chat.type(), "textual" + port, null, chat.payload()));
+
+			//and the text client still gets colored lines from the binary client
+			out2.println("@textual" + port + " reply");
+			Assertions.assertEquals(Message.privateMessageFormat("framed" + port, "reply"), readLineContaining(in1, "reply"));
+
+			out2.println("JOIN #binary" + port);
+			Frame joined = readFrame(in2, Frame.ROOM_JOINED);
+			Assertions.assertEquals("#binary" + port, joined.payload());
+			out1.println("JOIN #binary" + port);
+			out1.println("#binary" + port + " in the room");
+			Assertions.assertEquals(new Frame(Frame.ROOM, textualId, joined.room(), "in the room"), readFrame(in2, Frame.ROOM));
+
+			c1.socket.close();
+			Assertions.assertEquals(new Frame(Frame.LEFT, textualId, 0, "textual" + port), readFrame(in2, Frame.LEFT));
+			c2.socket.close();
+			server.stop();
+		}
+	}
+
+	/**
+	 * connection without a socket that counts what it receives
+	 */
+	static class CountingConnection extends Connection {
+		int received;
+
+		CountingConnection(ChatServer server) {
+			super(server);
+		}
+
+		@Override
+		void send(Message msg) {
+			received++;
+		}
+
+		@Override
+		void close() {
+		}
+
+		@Override
+		InetAddress getInetAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+	}
+
+	@Test
+	@DisplayName("Compact session ids")
+	void sessionIds() {
+		ChatServer server = new ChatServer(new ServerConfig());
+		SessionRegistry registry = server.getRegistry();
+		CountingConnection[] users = new CountingConnection[3];
+		for (int i = 0; i < users.length; i++) {
+			users[i] = new CountingConnection(server);
+			Assertions.assertTrue(registry.add(users[i], 10));
+			users[i].handleLine("id" + i);
+			Assertions.assertEquals(i + 1, users[i].getId(), "Ids are not compact");
+			Assertions.assertSame(users[i], registry.get(i + 1));
+		}
+
+		//the id of a user that left is given to the next one
+		users[1].closed();
+		Assertions.assertNull(registry.get(2));
+		CountingConnection next = new CountingConnection(server);
+		registry.add(next, 10);
+		next.handleLine("next");
+		Assertions.assertEquals(2, next.getId(), "Free id was not reused");
+		Assertions.assertEquals(3, registry.highestId());
+
+		//broadcasts and rooms leave out the sender by its id
+		int before = users[2].received;
+		Assertions.assertEquals(2, registry.broadcast(Message.raw("all"), users[0].getId()));
+		Assertions.assertEquals(before + 1, users[2].received);
+		users[2].handleLine("JOIN #ids");
+		next.handleLine("JOIN #ids");
+		Room room = server.getRooms().get("#ids");
+		Assertions.assertArrayEquals(new int[]{2, 3}, room.members());
+		Assertions.assertTrue(room.isMember(3) && !room.isMember(1));
+		Assertions.assertEquals(1, registry.send(room.members(), Message.raw("room"), next.getId()));
+	}
+
+	@Test
+	@DisplayName("Command parser")
+	void commandParser() {
+		Command command = new Command();
+		Assertions.assertSame(command, CommandParser.parse("@alice hi there", command));
+		Assertions.assertEquals(Command.Type.PRIVATE, command.getType());
+		Assertions.assertEquals("alice", command.target());
+		Assertions.assertEquals("hi there", command.text());
+
+		CommandParser.parse("#room hello", command);
+		Assertions.assertEquals(Command.Type.ROOM, command.getType());
+		Assertions.assertEquals("#room", command.target());
+		Assertions.assertEquals("hello", command.text());
+
+		CommandParser.parse("JOIN  #room ", command);
+		Assertions.assertEquals(Command.Type.JOIN, command.getType());
+		Assertions.assertEquals("#room", command.target());
+
+		CommandParser.parse("HISTORY 5 @bob", command);
+		Assertions.assertEquals(Command.Type.HISTORY, command.getType());
+		Assertions.assertEquals(5, command.getCount());
+		Assertions.assertEquals("@bob", command.target());
+		CommandParser.parse("HISTORY", command);
+		Assertions.assertEquals(CommandParser.DEFAULT_HISTORY, command.getCount());
+		Assertions.assertFalse(command.hasTarget());
+
+		//malformed lines do not throw, they become invalid
+		for (String line : new String[]{"@nobody", "#room", "HISTORY x", "HISTORY 99999999999", "HISTORY 5 room"}) {
+			CommandParser.parse(line, command);
+			Assertions.assertEquals(Command.Type.INVALID, command.getType(), line);
+			Assertions.assertNotNull(command.getError());
+		}
+
+		//keywords only count as a whole
+		for (String line : new String[]{"", "JOINED", "PENGUIN", "WHOIS?", "Hello"}) {
+			Assertions.assertEquals(Command.Type.CHAT, CommandParser.parse(line, command).getType(), line);
+		}
+		Assertions.assertEquals(Command.Type.PENGU, CommandParser.parse("PENGU", command).getType());
+		Assertions.assertEquals(Command.Type.LOGOUT, CommandParser.parse("LOGOUT", command).getType());
+	}
+
+	@Test
+	@DisplayName("Rate limits")
+	void rateLimits() {
+		TokenBucket bucket = new TokenBucket(10, 3);
+		long now = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			Assertions.assertTrue(bucket.tryTake(now), "Burst was not allowed");
+		}
+		Assertions.assertFalse(bucket.tryTake(now), "Empty bucket gave a token");
+		Assertions.assertTrue(bucket.tryTake(now + 100_000_000L), "Bucket was not refilled");
+		Assertions.assertFalse(bucket.tryTake(now + 100_000_000L));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new ServerConfig().parse("rate=-1"));
+
+		//both connections come from the loopback address and share its bucket, logging in takes a token as well
+		ChatServer server = new ChatServer(new ServerConfig().addressRate(1).addressBurst(3));
+		CountingConnection c1 = new CountingConnection(server);
+		CountingConnection c2 = new CountingConnection(server);
+		server.getRegistry().add(c1, 10);
+		server.getRegistry().add(c2, 10);
+		c1.handleLine("limited1");
+		c2.handleLine("limited2");
+		c1.handleLine("fast");
+		int before = c1.received;
+		c2.handleLine("too fast");
+		c2.handleLine("even faster");
+		Assertions.assertEquals(before, c1.received, "Throttled line was sent");
+		Assertions.assertEquals(2, server.getMetrics().getThrottledByAddress());
+		Assertions.assertEquals(0, server.getMetrics().getThrottledBySession());
+		Assertions.assertEquals(1, server.getLimiter().addresses());
+
+		c1.closed();
+		c2.closed();
+		Assertions.assertEquals(0, server.getLimiter().addresses(), "Bucket of the address was kept");
+	}
+
+	@Test
+	@DisplayName("Cluster of two nodes on loopback")
+	void cluster() throws IOException, InterruptedException {
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new ChatServer(new ServerConfig().clusterPort(3016)), "Cluster without a secret");
+		new Thread(() -> new ChatServer("3006", new ServerConfig().clusterPort(3016).clusterSecret("penguins").nodeName("north"))).start();
+		new Thread(() -> new ChatServer("3007", new ServerConfig().mode(ServerConfig.Mode.NIO).clusterPort(3017).clusterSecret("penguins").nodeName("south").peers("localhost:3016"))).start();
+		awaitServer(3006);
+		awaitServer(3007);
+
+		ChatClient c1 = new ChatClient("localhost", "3006");
+		c1.socket.setSoTimeout(5000);
+		PrintWriter out1 = new PrintWriter(c1.socket.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.socket.getInputStream(), StandardCharsets.UTF_8));
+		in1.readLine();
+		out1.println("northerner");
+		Assertions.assertEquals("VALID", in1.readLine());
+
+		ChatClient c2 = new ChatClient("localhost", "3007");
+		c2.socket.setSoTimeout(5000);
+		PrintWriter out2 = new PrintWriter(c2.socket.getOutputStream(), true);
+		BufferedReader in2 = new BufferedReader(new InputStreamReader(c2.socket.getInputStream(), StandardCharsets.UTF_8));
+		in2.readLine();
+		out2.println("southerner");
+		Assertions.assertEquals("VALID", in2.readLine());
+
+		//the nodes link in the background, wait until the south knows the user of the north
+		//only the message to nobody is answered with an error once it does
+		boolean linked = false;
+		for (int i = 0; i < 50 && !linked; i++) {
+			out2.println("@northerner are you there?");
+			out2.println("@nobody anyone?");
+			linked = readLineContaining(in2, "could not be found").contains("nobody");
+			if (!linked) {
+				readLineContaining(in2, "nobody could not be found");
+				Thread.sleep(100);
+			}
+		}
+		Assertions.assertTrue(linked, "Nodes did not link");
+		Assertions.assertNotNull(readLineContaining(in1, "are you there?"), "Private message was not relayed");
+
+		//private messages go back the same way, messages to everyone reach the other node
+		out1.println("@southerner yes");
+		Assertions.assertTrue(readLineContaining(in2, "❯❯").contains("yes"));
+		out1.println("hello south");
+		Assertions.assertTrue(readLineContaining(in2, "northerner").contains("hello south"));
+
+		//rooms have the same name on every node
+		out1.println("JOIN #cluster");
+		Assertions.assertNotNull(readLineContaining(in1, "You joined #cluster"));
+		out2.println("JOIN #cluster");
+		Assertions.assertNotNull(readLineContaining(in1, "southerner joined #cluster"));
+		out2.println("#cluster in the room");
+		Assertions.assertTrue(readLineContaining(in1, "#cluster").contains("in the room"));
+
+		//WHOIS and usernames span the cluster
+		out1.println("WHOIS");
+		Assertions.assertTrue(readLineContaining(in1, "southerner connected since").endsWith("on south"));
+		ChatClient c3 = new ChatClient("localhost", "3006");
+		PrintWriter out3 = new PrintWriter(c3.socket.getOutputStream(), true);
+		BufferedReader in3 = new BufferedReader(new InputStreamReader(c3.socket.getInputStream()));
+		in3.readLine();
+		out3.println("southerner");
+		Assertions.assertEquals("ENTER_USERNAME", in3.readLine(), "Name of a user on another node was given out");
+
+		//a node that does not know the secret is disconnected after its hello
+		try (Socket intruder = new Socket("localhost", 3016)) {
+			intruder.setSoTimeout(5000);
+			DataInputStream in = new DataInputStream(intruder.getInputStream());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(intruder.getOutputStream()));
+			Assertions.assertEquals(Relay.CHALLENGE, Relay.read(in).type());
+			Relay.challenge("nonce").write(out);
+			Relay.hello("mallory", "guessed").write(out);
+			Relay.userUp("impostor", 0).write(out);
+			out.flush();
+			Assertions.assertNull(Relay.read(in), "Link without the secret was kept");
+		}
+		out1.println("WHOIS");
+		Assertions.assertFalse(readLineContaining(in1, "southerner connected since").contains("impostor"));
+
+		c2.socket.close();
+		Assertions.assertNotNull(readLineContaining(in1, "southerner has left the chat!"));
+		c1.socket.close();
+		c3.socket.close();
+	}
+
+	@Test
+	@DisplayName("WHOIS snapshot, prefix and pages")
+	void whoisSnapshot() {
+		ChatServer server = new ChatServer(new ServerConfig().maxConnections(200));
+		UserDirectory directory = server.getRegistry().directory();
+		CountingConnection[] users = new CountingConnection[120];
+		for (int i = 0; i < users.length; i++) {
+			users[i] = new CountingConnection(server);
+			server.getRegistry().add(users[i], 200);
+			users[i].handleLine(String.format("user%03d", i));
+		}
+
+		//the snapshot is only rebuilt after a change
+		UserDirectory.Snapshot snapshot = directory.snapshot();
+		Assertions.assertEquals(120, snapshot.size());
+		Assertions.assertSame(snapshot, directory.snapshot(), "Snapshot was rebuilt without a change");
+		Assertions.assertSame(snapshot.all(), directory.snapshot().all());
+		Assertions.assertTrue(snapshot.all().getText().startsWith("- user000 connected since"));
+
+		Assertions.assertEquals(10, snapshot.withPrefix("user01").lines().count());
+		Assertions.assertNull(snapshot.withPrefix("nobody"));
+		Assertions.assertEquals(3, snapshot.pages());
+		Assertions.assertTrue(snapshot.page(2).startsWith("- user050 "));
+		Assertions.assertEquals(20, snapshot.page(3).lines().count());
+		Assertions.assertNull(snapshot.page(4));
+
+		users[0].closed();
+		UserDirectory.Snapshot changed = directory.snapshot();
+		Assertions.assertNotSame(snapshot, changed);
+		Assertions.assertEquals(119, changed.size());
+		Assertions.assertTrue(changed.all().getText().startsWith("- user001 "));
+
+		//the parser tells pages and prefixes apart
+		Command command = new Command();
+		CommandParser.parse("WHOIS page 2", command);
+		Assertions.assertEquals(Command.Type.WHOIS, command.getType());
+		Assertions.assertEquals(2, command.getCount());
+		CommandParser.parse("WHOIS user1", command);
+		Assertions.assertEquals("user1", command.target());
+		Assertions.assertEquals(0, command.getCount());
+		Assertions.assertEquals(Command.Type.INVALID, CommandParser.parse("WHOIS page x", command).getType());
+		Assertions.assertEquals(Command.Type.INVALID, CommandParser.parse("WHOIS a b", command).getType());
+	}
+
+	@Test
+	@DisplayName("Stopping drains the connections")
+	void gracefulStop() throws Exception {
+		MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+		for (ServerConfig.Mode mode : new ServerConfig.Mode[]{ServerConfig.Mode.PLATFORM, ServerConfig.Mode.NIO}) {
+			ChatServer server = ChatServer.start("0", new ServerConfig().mode(mode).drainMillis(2000));
+			String port = String.valueOf(server.getPort());
+			Assertions.assertTrue(server.isRunning());
+			server.awaitMetrics();
+			Assertions.assertTrue(beans.isRegistered(new ObjectName("pgdp.threads:type=ChatServer,port=" + port)));
+
+			ChatClient c1 = new ChatClient("localhost", port);
+			c1.socket.setSoTimeout(5000);
+			PrintWriter out1 = new PrintWriter(c1.socket.getOutputStream(), true);
+			BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.socket.getInputStream()));
+			in1.readLine();
+			out1.println("leaving" + port);
+			Assertions.assertEquals("VALID", in1.readLine());
+			ChatClient c2 = new ChatClient("localhost", port);
+			PrintWriter out2 = new PrintWriter(c2.socket.getOutputStream(), true);
+			BufferedReader in2 = new BufferedReader(new InputStreamReader(c2.socket.getInputStream()));
+			in2.readLine();
+			out2.println("staying" + port);
+			Assertions.assertEquals("VALID", in2.readLine());
+			readLineContaining(in1, "staying" + port + " joined");
+
+			//everything queued before the stop arrives, followed by the goodbye and the end of the stream
+			for (int i = 0; i < 1000; i++) {
+				server.getRegistry().broadcast(Message.info("queued " + i), 0);
+			}
+			server.stop();
+			Assertions.assertFalse(server.isRunning());
+			for (int i = 0; i < 1000; i++) {
+				Assertions.assertNotNull(readLineContaining(in1, "queued " + i), "Queued message was lost");
+			}
+			Assertions.assertTrue(in1.readLine().contains("shutting down"), "Users were not told");
+			Assertions.assertNull(in1.readLine(), "Connection was not closed");
+			Assertions.assertEquals(0, server.getRegistry().size());
+			Assertions.assertFalse(beans.isRegistered(new ObjectName("pgdp.threads:type=ChatServer,port=" + port)));
+			Assertions.assertThrows(IOException.class, () -> new Socket("localhost", Integer.parseInt(port)).close());
+			c1.socket.close();
+			c2.socket.close();
+		}
+	}
+
+	@Test
+	@DisplayName("Heartbeats reap silent clients")
+	void heartbeats() throws Exception {
+		//off unless configured, a plain line client never sees a PING
+		ChatServer quiet = new ChatServer(new ServerConfig());
+		Assertions.assertNull(quiet.getHeartbeats(), "Heartbeats are on by default");
+		quiet.stop();
+
+		TimerWheel wheel = new TimerWheel(10, TimeUnit.MILLISECONDS, 8, "test-wheel");
+		CountDownLatch fired = new CountDownLatch(2);
+		AtomicBoolean cancelledRan = new AtomicBoolean();
+		//longer than one round of the wheel
+		wheel.schedule(fired::countDown, 150, TimeUnit.MILLISECONDS);
+		wheel.schedule(fired::countDown, 0, TimeUnit.MILLISECONDS);
+		wheel.schedule(() -> cancelledRan.set(true), 50, TimeUnit.MILLISECONDS).cancel();
+		Assertions.assertTrue(fired.await(2, TimeUnit.SECONDS), "Timeouts did not run");
+		Assertions.assertFalse(cancelledRan.get(), "Cancelled timeout ran");
+		wheel.stop();
+
+		ChatServer server = ChatServer.start("0", new ServerConfig().mode(ServerConfig.Mode.NIO).heartbeatMillis(100).idleTimeoutMillis(400));
+		String port = String.valueOf(server.getPort());
+		ChatClient alive = new ChatClient("localhost", port);
+		PrintWriter out2 = new PrintWriter(alive.socket.getOutputStream(), true);
+		BufferedReader in2 = new BufferedReader(new InputStreamReader(alive.socket.getInputStream()));
+		AtomicInteger pongs = new AtomicInteger();
+		Thread answering = new Thread(() -> {
+			try {
+				String line;
+				while ((line = in2.readLine()) != null) {
+					if (!line.equals(Connection.PING)) continue;
+					out2.println(Connection.PONG);
+					pongs.incrementAndGet();
+				}
+			} catch (IOException e) {
+				//closed at the end of the test
+			}
+		});
+		answering.start();
+
+		//the silent client is asked and then dropped
+		ChatClient silent = new ChatClient("localhost", port);
+		silent.socket.setSoTimeout(5000);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(silent.socket.getInputStream()));
+		Assertions.assertEquals("ENTER_USERNAME", in1.readLine());
+		Assertions.assertEquals(Connection.PING, in1.readLine());
+		Assertions.assertNull(readLineContaining(in1, "never sent"), "Silent client was not disconnected");
+		Assertions.assertEquals(1, server.getMetrics().getIdleDisconnects());
+
+		//answering keeps a client connected
+		Assertions.assertTrue(pongs.get() >= 3, "Client was not pinged");
+		//the connection is removed right after its socket was closed
+		for (int i = 0; i < 100 && server.getRegistry().size() > 1; i++) {
+			Thread.sleep(10);
+		}
+		Assertions.assertEquals(1, server.getRegistry().size());
+		server.stop();
+		silent.socket.close();
+		alive.socket.close();
+		answering.join();
+	}
+
+	@Test
+	@DisplayName("Compressed frames")
+	void compression() throws IOException {
+		//large frames share one deflate stream, small ones are sent as they are
+		FrameCompressor compressor = new FrameCompressor(64, new ServerMetrics());
+		//random letters hardly compress on their own, but the second time they are only a reference to the first
+		Random random = new Random(42);
+		StringBuilder letters = new StringBuilder();
+		for (int i = 0; i < 600; i++) {
+			letters.append((char) ('a' + random.nextInt(26)));
+		}
+		String fact = letters.toString();
+		byte[] first = compressor.compress(Frame.encode(Frame.PINGU, 0, 0, fact));
+		byte[] second = compressor.compress(Frame.encode(Frame.PINGU, 0, 0, fact));
+		byte[] small = Frame.encode(Frame.CHAT, 1, 0, "hi");
+		Assertions.assertSame(small, compressor.compress(small), "Small frame was compressed");
+		Assertions.assertTrue(second.length < first.length / 4, "Deflate stream did not remember the first frame");
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(first);
+		stream.write(small);
+		stream.write(second);
+		FrameReader reader = new FrameReader(new DataInputStream(new ByteArrayInputStream(stream.toByteArray())));
+		Assertions.assertEquals(new Frame(Frame.PINGU, 0, 0, fact), reader.read());
+		Assertions.assertEquals(new Frame(Frame.CHAT, 1, 0, "hi"), reader.read());
+		Assertions.assertEquals(new Frame(Frame.PINGU, 0, 0, fact), reader.read());
+		Assertions.assertNull(reader.read());
+		reader.close();
+		//a closed compressor has released its deflater and leaves the frames as they are
+		compressor.close();
+		byte[] large = Frame.encode(Frame.PINGU, 0, 0, fact);
+		Assertions.assertSame(large, compressor.compress(large));
+
+		for (ServerConfig.Mode mode : new ServerConfig.Mode[]{ServerConfig.Mode.PLATFORM, ServerConfig.Mode.NIO}) {
+			ChatServer server = ChatServer.start("0", new ServerConfig().mode(mode).compressionThreshold(128));
+			String port = String.valueOf(server.getPort());
+			ChatClient c1 = new ChatClient("localhost", port);
+			c1.socket.setSoTimeout(5000);
+			PrintWriter out1 = new PrintWriter(c1.socket.getOutputStream(), true);
+			DataInputStream in1 = new DataInputStream(new BufferedInputStream(c1.socket.getInputStream()));
+			FrameReader frames = new FrameReader(in1);
+			Assertions.assertEquals("ENTER_USERNAME", ChatClient.readLine(in1));
+			out1.println("DEFLATE");
+			Assertions.assertEquals("ENTER_USERNAME", frames.read().payload());
+			out1.println("deflating" + port);
+			Assertions.assertEquals("VALID", frames.read().payload());
+
+			ChatClient c2 = new ChatClient("localhost", port);
+			PrintWriter out2 = new PrintWriter(c2.socket.getOutputStream(), true);
+			BufferedReader in2 = new BufferedReader(new InputStreamReader(c2.socket.getInputStream(), StandardCharsets.UTF_8));
+			in2.readLine();
+			out2.println("verbose" + port);
+			Assertions.assertEquals("VALID", in2.readLine());
+			for (int i = 0; i < 3; i++) {
+				out2.println(fact);
+			}
+			out2.println("short");
+			for (int i = 0; i < 3; i++) {
+				Frame frame;
+				do {
+					frame = frames.read();
+				} while (frame.type() != Frame.CHAT);
+				Assertions.assertEquals(fact, frame.payload());
+			}
+			Frame last;
+			do {
+				last = frames.read();
+			} while (last.type() != Frame.CHAT);
+			Assertions.assertEquals("short", last.payload());
+
+			ServerMetrics metrics = server.getMetrics();
+			Assertions.assertTrue(metrics.getBytesAfterCompression() * 2 < metrics.getBytesBeforeCompression(), "Frames were not compressed");
+			server.stop();
+			frames.close();
+			c1.socket.close();
+			c2.socket.close();
+		}
+	}
+
+	@Test
+	@DisplayName("Events are logged in order without blocking the threads that log them")
+	void eventLog(@TempDir Path dir) throws Exception {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		EventLog log = new EventLog(stream, 1024);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			int thread = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 200; i++) {
+					log.log(EventLog.CONNECT, InetAddress.getLoopbackAddress(), "user" + thread, "event " + i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		log.close();
+		List<String> lines = stream.toString(StandardCharsets.UTF_8).lines().toList();
+		Assertions.assertEquals(800 - log.getDropped(), lines.stream().filter(line -> line.contains(" connect ")).count());
+		Assertions.assertTrue(lines.get(0).matches("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}\\.\\d{3} connect address=\\S+ user=user\\d detail=\"event \\d+\""), lines.get(0));
+		for (int t = 0; t < threads.length; t++) {
+			//every thread sees its own events in the order it logged them
+			String user = "user=user" + t + " ";
+			List<String> own = lines.stream().filter(line -> line.contains(user)).toList();
+			for (int i = 1; i < own.size(); i++) {
+				Assertions.assertTrue(number(own.get(i - 1)) < number(own.get(i)), own.get(i));
+			}
+		}
+
+		//control characters cannot start a forged line or reach the terminal
+		ByteArrayOutputStream forged = new ByteArrayOutputStream();
+		EventLog escaping = new EventLog(forged, 64);
+		escaping.log(EventLog.HANDSHAKE, null, "eve\r\n2026-10-18T00:00:00.000 server", "\u001b[2J\ttext");
+		escaping.close();
+		String escaped = forged.toString(StandardCharsets.UTF_8);
+		Assertions.assertEquals(1, escaped.lines().count(), escaped);
+		Assertions.assertTrue(escaped.contains(" user=\"eve\\r\\n2026-10-18T00:00:00.000 server\" detail=\"\\u001b[2J\\ttext\""), escaped);
+
+		Path file = dir.resolve("events.log");
+		ChatServer server = ChatServer.start("0", new ServerConfig().logFile(file));
+		ChatClient c = new ChatClient("localhost", String.valueOf(server.getPort()));
+		PrintWriter out = new PrintWriter(c.socket.getOutputStream(), true);
+		BufferedReader in = new BufferedReader(new InputStreamReader(c.socket.getInputStream(), StandardCharsets.UTF_8));
+		in.readLine();
+		out.println("logged");
+		Assertions.assertEquals("VALID", in.readLine());
+		out.println("LOGOUT");
+		while (in.readLine() != null) {
+			//wait until the server closed the connection
+		}
+		c.socket.close();
+		server.stop();
+		String events = Files.readString(file);
+		for (String event : new String[]{"server detail=\"Server started\"", "connect address=", "handshake address=",
+				"user=logged detail=text", "disconnect address=", "server detail=\"Server stopped\""}) {
+			Assertions.assertTrue(events.contains(event), events);
+		}
+		Assertions.assertTrue(events.indexOf(" handshake ") < events.indexOf(" disconnect "), events);
+	}
+
+	@Test
+	@DisplayName("Hundreds of sessions share one client thread")
+	void clientLoop() throws Exception {
+		int sessions = 200;
+		ChatServer server = ChatServer.start("0", new ServerConfig().mode(ServerConfig.Mode.NIO).maxConnections(sessions + 10));
+		Set<String> threads = ConcurrentHashMap.newKeySet();
+		CountDownLatch loggedIn = new CountDownLatch(sessions);
+		CountDownLatch received = new CountDownLatch(sessions - 1);
+		CountDownLatch closed = new CountDownLatch(sessions);
+		ClientSession.Listener listener = new ClientSession.Listener() {
+			@Override
+			public void received(ClientSession session, String line) {
+				threads.add(Thread.currentThread().getName());
+				if (line.equals("VALID")) loggedIn.countDown();
+				if (line.endsWith("hello from the loop")) received.countDown();
+			}
+
+			@Override
+			public void closed(ClientSession session) {
+				closed.countDown();
+			}
+		};
+
+		try (ClientLoop loop = new ClientLoop()) {
+			ClientSession[] clients = new ClientSession[sessions];
+			for (int i = 0; i < sessions; i++) {
+				clients[i] = loop.connect("localhost", server.getPort(), "looped" + i, listener);
+			}
+			Assertions.assertTrue(loggedIn.await(10, TimeUnit.SECONDS), "Sessions did not log in");
+			clients[0].send("hello from the loop");
+			Assertions.assertTrue(received.await(10, TimeUnit.SECONDS), "Message did not reach every session");
+			Assertions.assertEquals(1, threads.size(), threads.toString());
+
+			//lines sent before the login wait for it
+			CountDownLatch answered = new CountDownLatch(1);
+			ClientSession eager = loop.connect("localhost", server.getPort(), "eager", (session, line) -> {
+				if (line.contains("keeps no history")) answered.countDown();
+			});
+			eager.send("HISTORY 1");
+			Assertions.assertTrue(answered.await(10, TimeUnit.SECONDS), "Line sent before the login was lost");
+
+			for (ClientSession client : clients) {
+				client.send("LOGOUT");
+			}
+			Assertions.assertTrue(closed.await(10, TimeUnit.SECONDS), "Sessions were not closed");
+		}
+		server.stop();
+	}
+
+	@Test
+	@Tag("startup")
+	@DisplayName("A fresh server logs in its first user quickly")
+	void startup() throws Exception {
+		//starts real JVMs and measures wall-clock time, so it only runs with -Pcds and not with every mvn test
+		StartupBenchmark.Result result = StartupBenchmark.measure(3, List.of());
+		Assertions.assertTrue(result.accepted() <= result.loggedIn());
+		Assertions.assertTrue(result.loggedIn() < StartupBenchmark.DEFAULT_THRESHOLD_MILLIS, "Startup regressed: " + result);
+	}
+
+	@Test
+	@DisplayName("Startup leaves the optional parts for later")
+	void lazyStartup() throws Exception {
+		ChatServer server = ChatServer.start("0", new ServerConfig());
+		ObjectName name = new ObjectName("pgdp.threads:type=ChatServer,port=" + server.getPort());
+		LocalConnection c1 = server.connect();
+		PrintWriter out1 = new PrintWriter(c1.getOutputStream(), true);
+		BufferedReader in1 = new BufferedReader(new InputStreamReader(c1.getInputStream()));
+		in1.readLine();
+		out1.println("early");
+		Assertions.assertEquals("VALID", in1.readLine());
+		//JMX is registered in the background, stopping waits for it instead of leaving the bean behind
+		server.stop();
+		Assertions.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+		Assertions.assertThrows(IllegalArgumentException.class, () -> StartupBenchmark.main(new String[]{"runs=0"}));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> StartupBenchmark.main(new String[]{"threshold=fast"}));
+	}
+
+	/**
+	 * helper method that returns the number at the end of a logged detail
+	 */
+	private static int number(String line) {
+		return Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1, line.length() - 1));
+	}
+}
@@ -0,0 +1,67 @@
+package pgdp.threads;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * many chat sessions on one thread, for bots, bridges and tests that need hundreds of clients in one JVM
+ * every session is a non-blocking channel of the same event loop, which connects, reads and writes all of them
+ * instead of ChatClient's two blocking threads per connection
+ */
+class ClientLoop implements AutoCloseable {
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
+	private final EventLoop loop;
+	//errors of listeners and of the loop, a client has no log file of its own
+	private final EventLog log = new EventLog(System.err, 256);
+
+	public ClientLoop() throws IOException {
+		this.loop = new EventLoop("client-loop-" + COUNT.getAndIncrement(), log);
+		this.loop.start();
+	}
+
+	/**
+	 * open a session, it connects and logs in on the loop, so this only blocks to look up the host
+	 *
+	 * @param host     of the server
+	 * @param port     of the server
+	 * @param username to log in with
+	 * @param listener that is called on the loop for the lines from the server
+	 * @return the session, lines sent before it is logged in are written right after the login
+	 */
+	ClientSession connect(String host, int port, String username, ClientSession.Listener listener) throws IOException {
+		if (username.isBlank() || username.contains(" "))
+			throw new IllegalArgumentException("username invalid");
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.connect(new InetSocketAddress(host, port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		ClientSession session = new ClientSession(loop, channel, username, listener);
+		loop.execute(session::register);
+		return session;
+	}
+
+	/**
+	 * stop the loop and close all sessions right away, their listeners are not called anymore
+	 */
+	@Override
+	public void close() {
+		loop.shutdown();
+		//a listener may close the loop it runs on, which then ends after the listener returned
+		if (loop.inEventLoop()) return;
+		try {
+			loop.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.close();
+	}
+}
@@ -0,0 +1,273 @@
+package pgdp.threads;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * one chat session of a ClientLoop, speaks the line protocol over a non-blocking channel
+ * it logs in on its own and answers the heartbeat, every other line is handed to the listener on the loop
+ * lines can be sent from any thread, all lines sent until the loop gets to the session are written at once,
+ * lines sent before the login are held back until the server accepted the username
+ */
+class ClientSession implements EventLoop.Handler {
+	/**
+	 * callback of a session, runs on the thread of the loop and must not block
+	 */
+	interface Listener {
+		/**
+		 * called for every line from the server, starting with VALID once the session is logged in
+		 *
+		 * @param session that received the line
+		 * @param line    without the line terminator
+		 */
+		void received(ClientSession session, String line);
+
+		/**
+		 * called once after the connection was closed, by either side or because it could not be opened
+		 *
+		 * @param session that was closed
+		 */
+		default void closed(ClientSession session) {
+		}
+	}
+
+	private final EventLoop loop;
+	private final SocketChannel channel;
+	private final String username;
+	private final Listener listener;
+	private SelectionKey key;
+
+	private final LineBuffer partialLine = new LineBuffer(ChannelConnection.MAX_LINE_LENGTH);
+	private boolean askedForUsername;
+	private volatile boolean loggedIn;
+
+	//lines that were sent but not copied to the output yet
+	private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+	//bytes that were not written yet, only used by the loop
+	private ByteBuffer output = ByteBuffer.allocate(1024);
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private volatile boolean closeRequested;
+
+	/**
+	 * @param loop     that serves the session
+	 * @param channel  that is connecting to the server, non-blocking
+	 * @param username to log in with
+	 * @param listener for the lines from the server
+	 */
+	ClientSession(EventLoop loop, SocketChannel channel, String username, Listener listener) {
+		this.loop = loop;
+		this.channel = channel;
+		this.username = username;
+		this.listener = listener;
+	}
+
+	String getUsername() {
+		return username;
+	}
+
+	/**
+	 * @return if the server accepted the username
+	 */
+	boolean isLoggedIn() {
+		return loggedIn;
+	}
+
+	/**
+	 * @return if the connection was closed
+	 */
+	boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * register the channel with the loop, must be called on the loop
+	 */
+	void register() {
+		try {
+			key = channel.register(loop.selector(), channel.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * queue a line for the server, returns right away
+	 *
+	 * @param line without the line terminator
+	 */
+	void send(String line) {
+		if (closed.get() || closeRequested) return;
+		pending.add((line + "\n").getBytes(StandardCharsets.UTF_8));
+		scheduleFlush();
+	}
+
+	/**
+	 * close the connection once everything that was sent has been written
+	 */
+	void close() {
+		closeRequested = true;
+		scheduleFlush();
+	}
+
+	/**
+	 * helper method that makes sure the loop writes the queued lines once it is done with its current work
+	 */
+	private void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			loop.execute(() -> {
+				flushScheduled.set(false);
+				flush();
+			});
+		}
+	}
+
+	@Override
+	public void handle(SelectionKey key) throws IOException {
+		if (key.isConnectable()) {
+			channel.finishConnect();
+			//nothing is written before the server asks for the username
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		if (key.isValid() && key.isReadable()) {
+			read();
+		}
+		if (key.isValid() && key.isWritable()) {
+			flush();
+		}
+	}
+
+	@Override
+	public void failed(Exception exc) {
+		//a broken socket is normal, anything else most likely comes from the listener
+		if (!(exc instanceof IOException)) loop.log().error(null, username, "handling a line", exc);
+		closeNow();
+	}
+
+	/**
+	 * helper method that reads everything available and handles all complete lines
+	 */
+	private void read() throws IOException {
+		ByteBuffer buffer = loop.readBuffer();
+		buffer.clear();
+		if (channel.read(buffer) < 0) {
+			closeNow();
+			return;
+		}
+		buffer.flip();
+
+		int start = buffer.position();
+		for (int i = start; i < buffer.limit(); i++) {
+			if (buffer.get(i) != '\n') continue;
+			String line = partialLine.line(buffer, start, i);
+			start = i + 1;
+			if (line != null) handleLine(line);
+			if (closed.get()) return;
+		}
+		partialLine.append(buffer, start, buffer.limit());
+	}
+
+	/**
+	 * helper method that logs in, answers the heartbeat and hands everything else to the listener
+	 */
+	private void handleLine(String line) {
+		if (line.equals(Connection.PING)) {
+			reply(Connection.PONG);
+			return;
+		}
+		if (line.equals(Connection.PONG)) return;
+		if (!loggedIn) {
+			if (line.equals("ENTER_USERNAME")) {
+				//asked a second time, the username is invalid or taken
+				if (askedForUsername) {
+					closeNow();
+				} else {
+					askedForUsername = true;
+					reply(username);
+				}
+				return;
+			}
+			if (line.equals("VALID")) {
+				loggedIn = true;
+				listener.received(this, line);
+				//write what was sent while logging in
+				flush();
+				return;
+			}
+		}
+		listener.received(this, line);
+	}
+
+	/**
+	 * helper method that writes a line of the protocol itself right away, before anything the user sent
+	 * must be called on the loop
+	 */
+	private void reply(String line) {
+		append((line + "\n").getBytes(StandardCharsets.UTF_8));
+		flush();
+	}
+
+	/**
+	 * helper method that copies the queued lines to the output and writes as much as the socket accepts
+	 * must be called on the loop
+	 */
+	private void flush() {
+		if (key == null || !key.isValid() || !channel.isConnected()) return;
+		//lines of the user wait for the login, the server would take the first one for the username
+		if (loggedIn) {
+			byte[] line;
+			while ((line = pending.poll()) != null) {
+				append(line);
+			}
+		}
+		try {
+			output.flip();
+			channel.write(output);
+			output.compact();
+		} catch (IOException e) {
+			closeNow();
+			return;
+		}
+		if (output.position() > 0) {
+			//continue once the socket is writable again
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		if (closeRequested && pending.isEmpty()) closeNow();
+	}
+
+	/**
+	 * helper method that adds a line to the output, which grows if it is full
+	 */
+	private void append(byte[] line) {
+		if (output.remaining() < line.length) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + line.length));
+			output.flip();
+			larger.put(output);
+			output = larger;
+		}
+		output.put(line);
+	}
+
+	/**
+	 * helper method that closes the channel right away and tells the listener
+	 */
+	private void closeNow() {
+		if (!closed.compareAndSet(false, true)) return;
+		if (key != null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			//closed anyway
+		}
+		pending.clear();
+		listener.closed(this);
+	}
+}
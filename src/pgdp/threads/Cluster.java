@@ -0,0 +1,353 @@
+package pgdp.threads;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * this server as one node of a cluster
+ * every node has a link to every other node, messages to everyone, to rooms and to users of other nodes are relayed over them
+ * a node tells the others which users log in and out, they keep those users as RemoteUser,
+ * so every node knows every username and which node it belongs to without any broker in between
+ *
+ * the links are opened by the nodes listed as peers and retried until they succeed,
+ * if two nodes dial each other at the same time only one of the links is kept
+ *
+ * the cluster port only listens on loopback unless another address is configured, and every link starts with
+ * a challenge in both directions, a node answers with an HMAC of the other node's nonce and the shared secret,
+ * so only nodes that know the secret can relay messages or log in users
+ */
+class Cluster {
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private final ChatServer server;
+	private final String name;
+	private final List<String> peers;
+	private final ServerSocket serverSocket;
+	private final SecretKeySpec secret;
+	private final SecureRandom random = new SecureRandom();
+	//active links by the name of the other node
+	private final ConcurrentHashMap<String, ClusterLink> links = new ConcurrentHashMap<>();
+	private volatile boolean running = true;
+
+	/**
+	 * @param server this node
+	 * @param config with the cluster port, the name and the peers of this node
+	 */
+	public Cluster(ChatServer server, ServerConfig config) throws IOException {
+		this.server = server;
+		this.name = config.getNodeName() != null ? config.getNodeName() : "node-" + config.getClusterPort();
+		this.peers = config.getPeers();
+		this.secret = new SecretKeySpec(config.getClusterSecret().getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+		InetAddress address = config.getClusterAddress() == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(config.getClusterAddress());
+		this.serverSocket = new ServerSocket(config.getClusterPort(), 50, address);
+	}
+
+	/**
+	 * start accepting links and dialing the peers, each on its own daemon thread
+	 */
+	void start() {
+		daemon(this::accept, "cluster-accept-" + name).start();
+		for (String peer : peers) {
+			daemon(() -> dial(peer), "cluster-dial-" + peer).start();
+		}
+	}
+
+	/**
+	 * close all links and stop accepting new ones, the users of the other nodes are removed
+	 */
+	void stop() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			//closed anyway
+		}
+		for (ClusterLink link : links.values()) {
+			link.close();
+		}
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return random challenge for the other node of a new link
+	 */
+	String nonce() {
+		byte[] nonce = new byte[16];
+		random.nextBytes(nonce);
+		return Base64.getEncoder().encodeToString(nonce);
+	}
+
+	/**
+	 * @param nonce  challenge of the other node
+	 * @param dialed if the answering node opened the link, so an answer cannot be sent back to the node that asked
+	 * @param node   name of the answering node
+	 * @return answer to the challenge that only a node with the same secret can give
+	 */
+	String proof(String nonce, boolean dialed, String node) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(secret);
+			byte[] proof = mac.doFinal((nonce + '\n' + (dialed ? "dial" : "accept") + '\n' + node).getBytes(StandardCharsets.UTF_8));
+			return Base64.getEncoder().encodeToString(proof);
+		} catch (GeneralSecurityException e) {
+			//every Java has HmacSHA256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param nonce  challenge this node sent
+	 * @param dialed if the other node opened the link
+	 * @param node   name the other node gave
+	 * @param proof  answer of the other node
+	 * @return if the other node knows the secret
+	 */
+	boolean verify(String nonce, boolean dialed, String node, String proof) {
+		if (proof == null) return false;
+		//compared in constant time, so the answer cannot be guessed byte by byte
+		return MessageDigest.isEqual(proof(nonce, dialed, node).getBytes(StandardCharsets.UTF_8), proof.getBytes(StandardCharsets.UTF_8));
+	}
+
+	EventLog getLog() {
+		return server.getLog();
+	}
+
+	/**
+	 * @return names of the nodes this node has a link to
+	 */
+	List<String> nodes() {
+		return List.copyOf(links.keySet());
+	}
+
+	private static Thread daemon(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * helper method of the accepting thread, every link reads on a thread of its own
+	 */
+	private void accept() {
+		while (running) {
+			try {
+				Socket socket = serverSocket.accept();
+				ClusterLink link = new ClusterLink(this, socket, false);
+				daemon(link::run, "cluster-link-" + socket.getPort()).start();
+			} catch (IOException e) {
+				//the server socket was closed
+			}
+		}
+	}
+
+	/**
+	 * helper method of a dialing thread that keeps a link to one peer
+	 * the link is read on this thread, once it is closed the peer is dialed again
+	 *
+	 * @param peer host:port of the other node
+	 */
+	private void dial(String peer) {
+		int separation = peer.lastIndexOf(':');
+		String host = peer.substring(0, separation);
+		int port = Integer.parseInt(peer.substring(separation + 1));
+		while (running) {
+			ClusterLink link = null;
+			try {
+				link = new ClusterLink(this, new Socket(host, port), true);
+				link.run();
+			} catch (IOException e) {
+				//the peer is not up yet
+			}
+
+			try {
+				//the peer may have dialed this node itself, that link is used as long as it is up
+				while (running && link != null && link.getPeer() != null && links.containsKey(link.getPeer())) {
+					Thread.sleep(1000);
+				}
+				//random delay, so two nodes that dial each other do not keep colliding
+				Thread.sleep(250 + ThreadLocalRandom.current().nextInt(500));
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * called by a link once the other node said hello
+	 *
+	 * @param link to the other node
+	 * @return if the link is used, false if there already is one to the same node
+	 */
+	boolean activate(ClusterLink link) {
+		if (link.getPeer().equals(name) || links.putIfAbsent(link.getPeer(), link) != null) return false;
+		server.getLog().log(EventLog.CLUSTER, link.getInetAddress(), null, "linked to " + link.getPeer());
+		return true;
+	}
+
+	/**
+	 * called by a link once it was closed, the users of the other node are logged out here
+	 *
+	 * @param link to the other node
+	 */
+	void deactivate(ClusterLink link) {
+		if (link.getPeer() == null || !links.remove(link.getPeer(), link)) return;
+		server.getLog().log(EventLog.CLUSTER, link.getInetAddress(), null, "lost link to " + link.getPeer());
+		for (RemoteUser user : link.users().values()) {
+			leave(user);
+		}
+		link.users().clear();
+	}
+
+	/**
+	 * helper method that sends a record to every other node
+	 */
+	private void relay(Relay relay) {
+		for (ClusterLink link : links.values()) {
+			link.send(relay);
+		}
+	}
+
+	/**
+	 * tell a new link about the users of this node
+	 *
+	 * @param link to the other node
+	 */
+	void sendUsers(ClusterLink link) {
+		for (Connection connection : server.getRegistry().users()) {
+			if (connection instanceof RemoteUser || connection.getId() == 0) continue;
+			link.send(Relay.userUp(connection.getUsername(), connection.getConnectedSince().getTime()));
+		}
+	}
+
+	/**
+	 * @param connection of a user that logged in on this node
+	 */
+	void userUp(Connection connection) {
+		relay(Relay.userUp(connection.getUsername(), connection.getConnectedSince().getTime()));
+	}
+
+	/**
+	 * @param user that logged out from this node
+	 */
+	void userDown(String user) {
+		relay(Relay.userDown(user));
+	}
+
+	/**
+	 * @param user that sent a message to everyone
+	 * @param msg  text of the message
+	 */
+	void chat(String user, String msg) {
+		relay(Relay.chat(user, msg));
+	}
+
+	/**
+	 * @param room that the message was sent to
+	 * @param user that sent the message
+	 * @param msg  text of the message
+	 */
+	void room(String room, String user, String msg) {
+		relay(Relay.room(room, user, msg));
+	}
+
+	/**
+	 * @param room that the information is about
+	 * @param msg  for the members of the room
+	 */
+	void roomInfo(String room, String msg) {
+		relay(Relay.roomInfo(room, msg));
+	}
+
+	/**
+	 * called by a link for every record of the other node after the hello
+	 *
+	 * @param link  to the other node
+	 * @param relay that was received
+	 */
+	void receive(ClusterLink link, Relay relay) {
+		SessionRegistry registry = server.getRegistry();
+		switch (relay.type()) {
+			case Relay.USER_UP -> {
+				String user = relay.first();
+				RemoteUser remote = new RemoteUser(server, link, user, new Date(Long.parseLong(relay.second())));
+				//a name that is taken here was claimed on two nodes at once, the user of this node keeps it here
+				if (link.users().containsKey(user) || !registry.claim(user, remote)) return;
+				link.users().put(user, remote);
+				server.getMetrics().broadcast(registry.broadcast(Message.joined(remote.getId(), user), remote.getId()));
+			}
+			case Relay.USER_DOWN -> {
+				RemoteUser remote = link.users().remove(relay.first());
+				if (remote != null) leave(remote);
+			}
+			case Relay.CHAT -> {
+				int sender = senderId(link, relay.first());
+				Message msg = Message.chat(sender, relay.first(), relay.second());
+				server.getMetrics().broadcast(registry.broadcast(msg, sender));
+				if (server.getRecent() != null) server.getRecent().append(msg);
+				journal(MessageJournal.LOBBY, msg);
+			}
+			case Relay.ROOM -> {
+				Room room = server.getRooms().get(relay.first());
+				if (room == null) return;
+				Message msg = Message.roomMessage(room.getId(), relay.first(), senderId(link, relay.second()), relay.second(), relay.third());
+				server.getMetrics().broadcast(registry.send(room.members(), msg, 0));
+				if (room.recent() != null) room.recent().append(msg);
+				journal(relay.first(), msg);
+			}
+			case Relay.ROOM_INFO -> {
+				Room room = server.getRooms().get(relay.first());
+				if (room != null) registry.send(room.members(), Message.info(relay.second()), 0);
+			}
+			case Relay.PRIVATE -> {
+				Connection receiver = registry.lookup(relay.second());
+				if (receiver == null || receiver instanceof RemoteUser) return;
+				Message msg = Message.privateMessage(senderId(link, relay.first()), relay.first(), relay.third());
+				receiver.send(msg);
+				journal(MessageJournal.privateKey(relay.first(), relay.second()), msg);
+			}
+			default -> {
+				//records of newer nodes are skipped
+			}
+		}
+	}
+
+	/**
+	 * @return id of a user of the other node on this node, 0 if it is unknown here
+	 */
+	private static int senderId(ClusterLink link, String user) {
+		RemoteUser remote = link.users().get(user);
+		return remote == null ? 0 : remote.getId();
+	}
+
+	/**
+	 * helper method that logs out a user of another node and tells the users of this node
+	 */
+	private void leave(RemoteUser user) {
+		SessionRegistry registry = server.getRegistry();
+		//announced while the id still belongs to the user, see Connection.closed()
+		server.getMetrics().broadcast(registry.broadcast(Message.left(user.getId(), user.getUsername()), 0));
+		registry.release(user);
+	}
+
+	private void journal(String conversation, Message msg) {
+		MessageJournal journal = server.getJournal();
+		if (journal != null) journal.append(conversation, msg);
+	}
+}
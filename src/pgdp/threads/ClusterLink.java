@@ -0,0 +1,155 @@
+package pgdp.threads;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * tcp link to another node of the cluster
+ * records are queued and a writer thread sends everything that queued up while it was writing with a single flush,
+ * so a busy link writes large batches and nobody ever waits for the other node to answer
+ */
+class ClusterLink {
+	//records that may wait for the writer, a node that falls this far behind is disconnected
+	static final int QUEUE_CAPACITY = 64 * 1024;
+	//tells the writer to stop
+	private static final Relay CLOSE = new Relay((byte) -1, null, null, null);
+
+	private final Cluster cluster;
+	private final Socket socket;
+	private final boolean dialed;
+	private final BlockingQueue<Relay> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final AtomicBoolean closed = new AtomicBoolean();
+	//users of the other node by name
+	private final Map<String, RemoteUser> users = new ConcurrentHashMap<>();
+	private volatile String peer;
+
+	/**
+	 * @param cluster this node
+	 * @param socket  connected to the other node
+	 * @param dialed  if this node opened the link
+	 */
+	public ClusterLink(Cluster cluster, Socket socket, boolean dialed) {
+		this.cluster = cluster;
+		this.socket = socket;
+		this.dialed = dialed;
+	}
+
+	/**
+	 * @return name of the other node, null until it said hello
+	 */
+	String getPeer() {
+		return peer;
+	}
+
+	InetAddress getInetAddress() {
+		return socket.getInetAddress();
+	}
+
+	/**
+	 * @return users of the other node by name
+	 */
+	Map<String, RemoteUser> users() {
+		return users;
+	}
+
+	/**
+	 * queue a record for the other node
+	 *
+	 * @param relay to be sent
+	 */
+	void send(Relay relay) {
+		if (!queue.offer(relay)) {
+			cluster.getLog().log(EventLog.CLUSTER, getInetAddress(), null, "link to " + peer + " is too slow, closing it");
+			close();
+		}
+	}
+
+	/**
+	 * read the records of the other node until the link is closed, blocks the calling thread
+	 * starts the writer, says hello and hands the link to the cluster once the other node proved it knows the secret
+	 */
+	void run() {
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+			Thread writer = new Thread(() -> write(out), "cluster-writer-" + socket.getPort());
+			writer.setDaemon(true);
+			writer.start();
+
+			//both nodes challenge each other, the answer proves the secret without sending it
+			String nonce = cluster.nonce();
+			send(Relay.challenge(nonce));
+			Relay challenge = Relay.read(in);
+			if (challenge == null || challenge.type() != Relay.CHALLENGE || challenge.first() == null) return;
+
+			//the node that dialed answers first, the other one only answers if it keeps the link
+			if (dialed) send(Relay.hello(cluster.getName(), cluster.proof(challenge.first(), true, cluster.getName())));
+			Relay hello = Relay.read(in);
+			if (hello == null || hello.type() != Relay.HELLO || hello.first() == null) return;
+			if (!cluster.verify(nonce, !dialed, hello.first(), hello.second())) {
+				cluster.getLog().log(EventLog.CLUSTER, getInetAddress(), null, "link from " + hello.first() + " has the wrong secret, closing it");
+				return;
+			}
+			peer = hello.first();
+			if (!cluster.activate(this)) return;
+			if (!dialed) send(Relay.hello(cluster.getName(), cluster.proof(challenge.first(), false, cluster.getName())));
+			cluster.sendUsers(this);
+
+			Relay relay;
+			while ((relay = Relay.read(in)) != null) {
+				cluster.receive(this, relay);
+			}
+		} catch (IOException e) {
+			//the other node is gone, its users are removed below
+		} finally {
+			close();
+			cluster.deactivate(this);
+		}
+	}
+
+	/**
+	 * helper method of the writer thread
+	 * takes the first record blocking and then everything else that is already queued, and flushes once
+	 */
+	private void write(DataOutputStream out) {
+		try {
+			while (true) {
+				Relay relay = queue.take();
+				do {
+					if (relay == CLOSE) return;
+					relay.write(out);
+				} while ((relay = queue.poll()) != null);
+				out.flush();
+			}
+		} catch (IOException e) {
+			close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * close the link, records that are still queued are dropped
+	 */
+	void close() {
+		if (!closed.compareAndSet(false, true)) return;
+		queue.clear();
+		queue.offer(CLOSE);
+		try {
+			socket.close();
+		} catch (IOException e) {
+			//closed anyway
+		}
+	}
+}
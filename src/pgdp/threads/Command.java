@@ -0,0 +1,91 @@
+package pgdp.threads;
+
+/**
+ * one line of a client after it was parsed by CommandParser
+ * every connection reuses one command for all its lines, and the command only keeps positions in the line,
+ * so a part of the line is only copied once it is really needed
+ */
+final class Command {
+	enum Type {
+		//message to everyone, the text is the whole line
+		CHAT,
+		//@user text
+		PRIVATE,
+		//#room text
+		ROOM,
+		//JOIN #room
+		JOIN,
+		//PART #room
+		PART,
+		//HISTORY [n] [#room|@user]
+		HISTORY,
+		//WHOIS [prefix|page n]
+		WHOIS,
+		LOGOUT,
+		PENGU,
+		//the line cannot be handled, the error says why
+		INVALID
+	}
+
+	private Type type;
+	private String line;
+	private int targetStart;
+	private int targetEnd;
+	private int textStart;
+	private int count;
+	private String error;
+
+	/**
+	 * helper method for the parser that replaces everything the command held before
+	 */
+	Command set(Type type, String line, int targetStart, int targetEnd, int textStart, int count, String error) {
+		this.type = type;
+		this.line = line;
+		this.targetStart = targetStart;
+		this.targetEnd = targetEnd;
+		this.textStart = textStart;
+		this.count = count;
+		this.error = error;
+		return this;
+	}
+
+	Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return if the command names a user or a room
+	 */
+	boolean hasTarget() {
+		return targetEnd > targetStart;
+	}
+
+	/**
+	 * @return the user without @ for PRIVATE, the room with # for ROOM, JOIN and PART,
+	 * the conversation with # or @ for HISTORY and the prefix for WHOIS
+	 */
+	String target() {
+		return line.substring(targetStart, targetEnd);
+	}
+
+	/**
+	 * @return the message text of CHAT, PRIVATE and ROOM
+	 */
+	String text() {
+		return line.substring(textStart);
+	}
+
+	/**
+	 * @return number of messages for HISTORY, the page for WHOIS or 0 if no page was asked for
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return why the line is INVALID
+	 */
+	String getError() {
+		return error;
+	}
+}
@@ -0,0 +1,156 @@
+package pgdp.threads;
+
+/**
+ * parser of the lines a client sends after logging in
+ * looks at every character at most once and decides by the first one which command it can be,
+ * it neither creates substrings nor throws, malformed lines become INVALID commands with a fixed error
+ */
+final class CommandParser {
+	static final String MISSING_MESSAGE = "Must supply a message";
+	static final String HISTORY_USAGE = "Must look like HISTORY 10, HISTORY 10 #room or HISTORY 10 @user";
+	static final String WHOIS_USAGE = "Must look like WHOIS, WHOIS prefix or WHOIS page 2";
+	static final int DEFAULT_HISTORY = 10;
+
+	private CommandParser() {
+	}
+
+	/**
+	 * @param line    without the line terminator
+	 * @param command that is overwritten with the result
+	 * @return the command
+	 */
+	static Command parse(String line, Command command) {
+		if (line.isEmpty()) return chat(line, command);
+		switch (line.charAt(0)) {
+			case '@' -> {
+				int separation = line.indexOf(' ');
+				if (separation < 0) return invalid(line, command, MISSING_MESSAGE);
+				return command.set(Command.Type.PRIVATE, line, 1, separation, separation + 1, 0, null);
+			}
+			case '#' -> {
+				int separation = line.indexOf(' ');
+				if (separation < 0) return invalid(line, command, MISSING_MESSAGE);
+				return command.set(Command.Type.ROOM, line, 0, separation, separation + 1, 0, null);
+			}
+			case 'J' -> {
+				if (hasArgument(line, "JOIN")) return argument(Command.Type.JOIN, line, command);
+			}
+			case 'P' -> {
+				if (hasArgument(line, "PART")) return argument(Command.Type.PART, line, command);
+				if (is(line, "PENGU")) return command.set(Command.Type.PENGU, line, 0, 0, 0, 0, null);
+			}
+			case 'H' -> {
+				if (is(line, "HISTORY") || hasArgument(line, "HISTORY")) return history(line, command);
+			}
+			case 'W' -> {
+				if (is(line, "WHOIS") || hasArgument(line, "WHOIS")) return whois(line, command);
+			}
+			case 'L' -> {
+				if (is(line, "LOGOUT")) return command.set(Command.Type.LOGOUT, line, 0, 0, 0, 0, null);
+			}
+			default -> {
+			}
+		}
+		return chat(line, command);
+	}
+
+	/**
+	 * helper method for lines that are exactly a keyword
+	 */
+	private static boolean is(String line, String keyword) {
+		return line.length() == keyword.length() && line.startsWith(keyword);
+	}
+
+	/**
+	 * helper method for lines that start with a keyword followed by a space
+	 */
+	private static boolean hasArgument(String line, String keyword) {
+		return line.length() > keyword.length() && line.charAt(keyword.length()) == ' ' && line.startsWith(keyword);
+	}
+
+	private static Command chat(String line, Command command) {
+		return command.set(Command.Type.CHAT, line, 0, 0, 0, 0, null);
+	}
+
+	private static Command invalid(String line, Command command, String error) {
+		return command.set(Command.Type.INVALID, line, 0, 0, 0, 0, error);
+	}
+
+	/**
+	 * helper method for JOIN and PART, the argument is everything after the keyword without surrounding whitespace
+	 */
+	private static Command argument(Command.Type type, String line, Command command) {
+		int start = skipWhitespace(line, type.name().length() + 1);
+		int end = line.length();
+		while (end > start && Character.isWhitespace(line.charAt(end - 1))) end--;
+		return command.set(type, line, start, end, end, 0, null);
+	}
+
+	/**
+	 * helper method for HISTORY [n] [#room|@user], anything after the conversation is ignored
+	 */
+	private static Command history(String line, Command command) {
+		int position = skipSpaces(line, "HISTORY".length());
+		if (position == line.length()) {
+			return command.set(Command.Type.HISTORY, line, 0, 0, 0, DEFAULT_HISTORY, null);
+		}
+
+		//the number, with an optional sign like Integer.parseInt allows, but without its exception
+		boolean negative = line.charAt(position) == '-';
+		if (negative || line.charAt(position) == '+') position++;
+		int digits = position;
+		long count = 0;
+		while (position < line.length() && line.charAt(position) >= '0' && line.charAt(position) <= '9') {
+			count = count * 10 + line.charAt(position) - '0';
+			if (count > Integer.MAX_VALUE + 1L) return invalid(line, command, HISTORY_USAGE);
+			position++;
+		}
+		if (position == digits || (position < line.length() && line.charAt(position) != ' ')) {
+			return invalid(line, command, HISTORY_USAGE);
+		}
+		count = negative ? -count : count;
+		if (count > Integer.MAX_VALUE) return invalid(line, command, HISTORY_USAGE);
+
+		int start = skipSpaces(line, position);
+		int end = line.indexOf(' ', start);
+		if (end < 0) end = line.length();
+		if (start < end) {
+			char kind = line.charAt(start);
+			if (kind != '#' && (kind != '@' || end - start < 2)) return invalid(line, command, HISTORY_USAGE);
+		}
+		return command.set(Command.Type.HISTORY, line, start, end, end, (int) count, null);
+	}
+
+	/**
+	 * helper method for WHOIS [prefix|page n], the target is the prefix and the count the page, 0 for none
+	 */
+	private static Command whois(String line, Command command) {
+		int start = skipSpaces(line, "WHOIS".length());
+		int end = line.indexOf(' ', start);
+		if (end < 0) return command.set(Command.Type.WHOIS, line, start, line.length(), line.length(), 0, null);
+
+		//a second word is only allowed after page, and has to be the number of the page
+		int position = skipSpaces(line, end);
+		if (!line.startsWith("page", start) || end - start != 4 || position == line.length()) {
+			return invalid(line, command, WHOIS_USAGE);
+		}
+		long page = 0;
+		while (position < line.length() && line.charAt(position) >= '0' && line.charAt(position) <= '9') {
+			page = page * 10 + line.charAt(position) - '0';
+			if (page > Integer.MAX_VALUE) return invalid(line, command, WHOIS_USAGE);
+			position++;
+		}
+		if (skipSpaces(line, position) != line.length() || page == 0) return invalid(line, command, WHOIS_USAGE);
+		return command.set(Command.Type.WHOIS, line, 0, 0, 0, (int) page, null);
+	}
+
+	private static int skipSpaces(String line, int position) {
+		while (position < line.length() && line.charAt(position) == ' ') position++;
+		return position;
+	}
+
+	private static int skipWhitespace(String line, int position) {
+		while (position < line.length() && Character.isWhitespace(line.charAt(position))) position++;
+		return position;
+	}
+}
@@ -0,0 +1,539 @@
+package pgdp.threads;
+
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * one client of the chat server
+ * contains the whole chat protocol, the transport is provided by the subclasses
+ */
+abstract class Connection {
+	//lines of the heartbeat, either side sends PING after a silence and the other one answers PONG
+	static final String PING = "PING";
+	static final String PONG = "PONG";
+
+	protected final ChatServer server;
+	private String username;
+	//small id of the user, given out by the registry when the username is claimed, 0 before
+	private volatile int id;
+	//if the client asked for the binary protocol, only changes before the login
+	private volatile boolean binary;
+	//set if the client asked for DEFLATE, only used by the thread writing to the client afterwards
+	private volatile FrameCompressor compressor;
+	private Date connectedSince;
+	//names of the rooms this user joined, only changed by the thread handling the input while holding the set,
+	//closed() may run on another thread, for example the heartbeat or a stopping server, and leaves them under the same lock
+	private final Set<String> rooms = new HashSet<>();
+	//parsed input, reused for every line
+	private final Command command = new Command();
+	//buckets limiting how fast the client may send, null if there is no limit, only used by the thread handling the input
+	private TokenBucket sessionBucket;
+	private TokenBucket addressBucket;
+	private InetAddress limitedAddress;
+	private boolean limited;
+	//if the client was told that its lines are dropped, told again once a line got through in between
+	private boolean throttled;
+	//System.nanoTime() of the last line from the client
+	private volatile long lastRead = System.nanoTime();
+	//next check of the heartbeat, replaced by every check
+	private volatile TimerWheel.Timeout heartbeat;
+	private volatile boolean gone;
+
+	public Connection(ChatServer server) {
+		this.server = server;
+		this.connectedSince = new Date();
+	}
+
+	/**
+	 * for users that logged in on another node of the cluster
+	 *
+	 * @param server         this node
+	 * @param username       of the user
+	 * @param connectedSince when the user logged in
+	 */
+	Connection(ChatServer server, String username, Date connectedSince) {
+		this.server = server;
+		this.username = username;
+		this.connectedSince = connectedSince;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public Date getConnectedSince() {
+		return connectedSince;
+	}
+
+	int getId() {
+		return id;
+	}
+
+	/**
+	 * only called by the registry
+	 *
+	 * @param id of the user
+	 */
+	void assignId(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * @return if the client gets binary frames instead of lines
+	 */
+	boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * only called by the thread writing to the client
+	 *
+	 * @param msg to be written
+	 * @return what is written for the message, compressed if the client asked for it and it is large enough
+	 */
+	byte[] encode(Message msg) {
+		FrameCompressor current = compressor;
+		byte[] bytes = msg.bytes(binary);
+		return current == null ? bytes : current.compress(bytes);
+	}
+
+	/**
+	 * send a message to the client
+	 * the message may be shared with other receivers, so its bytes must not be modified
+	 *
+	 * @param msg to be sent
+	 */
+	abstract void send(Message msg);
+
+	/**
+	 * send a line as it is to the client
+	 *
+	 * @param msg to be sent
+	 */
+	void send(String msg) {
+		send(Message.raw(msg));
+	}
+
+	/**
+	 * close the connection after everything that was sent so far has been written
+	 */
+	abstract void close();
+
+	/**
+	 * close the connection right away, messages that were not written yet are lost
+	 * used once a connection did not finish closing in time
+	 */
+	void abort() {
+		close();
+	}
+
+	/**
+	 * @return address of the client
+	 */
+	abstract InetAddress getInetAddress();
+
+	/**
+	 * @return empty queue for the messages to this client, sized like the server config says
+	 */
+	protected OutboundQueue createOutboundQueue() {
+		ServerConfig config = server.getConfig();
+		return new OutboundQueue(config.getQueueCapacity(), config.getOverflowPolicy(), server.getMetrics());
+	}
+
+	/**
+	 * helper function that sends msg to everyone but oneself
+	 * the message is encoded once and the same bytes are handed to every receiver
+	 *
+	 * @param msg to be sent
+	 */
+	private void sendToOthers(Message msg) {
+		if (getUsername() == null) return;
+		server.getMetrics().broadcast(server.getRegistry().broadcast(msg, id));
+	}
+
+	/**
+	 * helper function that sends msg to all members of a room but oneself
+	 * only touches the members of the room, no matter how many users are on the server
+	 *
+	 * @param room receiving the message
+	 * @param msg  to be sent
+	 */
+	private void sendToRoom(Room room, Message msg) {
+		server.getMetrics().broadcast(server.getRegistry().send(room.members(), msg, id));
+	}
+
+	/**
+	 * helper method that joins a room and tells its members
+	 *
+	 * @param name of the room
+	 */
+	private void joinRoom(String name) {
+		if (!RoomRegistry.isValidName(name)) {
+			send(Message.error(String.format("%s is not a valid room, it has to look like #name", name)));
+			return;
+		}
+		Room room;
+		synchronized (rooms) {
+			//a user that is already gone must not end up in a room, its id may soon belong to someone else
+			if (gone) return;
+			room = server.getRooms().join(name, this);
+			if (room != null) rooms.add(name);
+		}
+		if (room == null) {
+			send(Message.error(String.format("You are already in %s", name)));
+			return;
+		}
+		send(Message.roomJoined(room.getId(), name));
+		if (room.recent() != null) room.recent().replay(this::sendRecent);
+		String info = String.format("%s joined %s", username, name);
+		sendToRoom(room, Message.info(info));
+		if (server.getCluster() != null) server.getCluster().roomInfo(name, info);
+	}
+
+	/**
+	 * helper method that leaves a room and tells its members
+	 *
+	 * @param name of the room
+	 */
+	private void partRoom(String name) {
+		Room room;
+		synchronized (rooms) {
+			room = server.getRooms().part(name, this);
+			if (room != null) rooms.remove(name);
+		}
+		if (room == null) {
+			send(Message.error(String.format("You are not in %s", name)));
+			return;
+		}
+		send(Message.roomLeft(room.getId(), name));
+		String info = String.format("%s left %s", username, name);
+		sendToRoom(room, Message.info(info));
+		if (server.getCluster() != null) server.getCluster().roomInfo(name, info);
+	}
+
+	/**
+	 * helper method that sends a message from the backfill
+	 * binary clients get the formatted text, because the sender may have left and its id is unknown to them
+	 *
+	 * @param msg that was sent recently
+	 */
+	private void sendRecent(Message msg) {
+		send(binary ? Message.raw(msg.getText()) : msg);
+	}
+
+	/**
+	 * helper method that tells a binary client the ids of everyone online
+	 * users that log in later are announced with their joined message
+	 */
+	private void sendUsers() {
+		for (Connection connection : server.getRegistry().users()) {
+			String name = connection.getUsername();
+			//the user is still logging in and will announce itself
+			if (name == null || connection.getId() == 0) continue;
+			send(Message.user(connection.getId(), name));
+		}
+	}
+
+	/**
+	 * helper method that sends the list of users, all of them, those starting with a prefix or one page
+	 *
+	 * @param command WHOIS with the prefix or the page
+	 */
+	private void sendWhois(Command command) {
+		UserDirectory.Snapshot users = server.getRegistry().directory().snapshot();
+		if (command.getCount() > 0) {
+			String page = users.page(command.getCount());
+			if (page == null) {
+				send(Message.error(String.format("There are only %d pages", users.pages())));
+				return;
+			}
+			send(Message.info(String.format("Page %d of %d:", command.getCount(), users.pages())));
+			send(page);
+		} else if (command.hasTarget()) {
+			String matches = users.withPrefix(command.target());
+			if (matches == null) {
+				send(Message.info(String.format("No user starts with %s", command.target())));
+				return;
+			}
+			send(matches);
+		} else {
+			//the same encoded message for everyone until a user joins or leaves
+			send(users.all());
+		}
+	}
+
+	/**
+	 * helper method that hands a message to the journal, if the server keeps one
+	 *
+	 * @param conversation key of the conversation
+	 * @param msg          that was sent
+	 */
+	private void journal(String conversation, Message msg) {
+		MessageJournal journal = server.getJournal();
+		if (journal != null) journal.append(conversation, msg);
+	}
+
+	/**
+	 * helper method that replays the last messages of a conversation from the journal
+	 *
+	 * @param command HISTORY with the number of messages and optionally #room or @user
+	 */
+	private void sendHistory(Command command) {
+		MessageJournal journal = server.getJournal();
+		if (journal == null) {
+			send(Message.error("This server keeps no history"));
+			return;
+		}
+
+		String conversation;
+		if (!command.hasTarget()) {
+			conversation = MessageJournal.LOBBY;
+		} else {
+			String target = command.target();
+			if (target.charAt(0) == '#') {
+				if (!rooms.contains(target)) {
+					send(Message.error(String.format("You are not in %s, use JOIN %s first", target, target)));
+					return;
+				}
+				conversation = target;
+			} else {
+				conversation = MessageJournal.privateKey(username, target.substring(1));
+			}
+		}
+
+		List<String> lines = journal.history(conversation, Math.min(command.getCount(), MessageJournal.MAX_HISTORY));
+		send(Message.info(String.format("Last %d messages:", lines.size())));
+		for (String line : lines) {
+			send(line);
+		}
+	}
+
+	/**
+	 * check if username is valid and claim it if it is
+	 * cannot be blank, contain spaces, or already be in use
+	 *
+	 * @param input username
+	 * @return invalid username
+	 */
+	private boolean inputInvalid(String input) {
+		return input.isBlank() || input.contains(" ") || !server.getRegistry().claim(input, this);
+	}
+
+	/**
+	 * called by the transport once the client is connected
+	 * starts the welcome procedure by requesting a username
+	 */
+	void opened() {
+		server.getLog().log(EventLog.CONNECT, getInetAddress(), null, null);
+		send("ENTER_USERNAME");
+		if (server.getHeartbeats() != null) scheduleHeartbeat(server.getConfig().getHeartbeatMillis());
+	}
+
+	/**
+	 * helper method that checks the connection again after the delay
+	 */
+	private void scheduleHeartbeat(long millis) {
+		if (!gone) heartbeat = server.getHeartbeats().schedule(this::checkHeartbeat, millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * runs on the timer wheel, so it must not block
+	 * a client that was silent for the heartbeat is sent a PING, one that was silent for the idle timeout is cut off,
+	 * its socket may be dead without the operating system having noticed
+	 */
+	private void checkHeartbeat() {
+		if (gone) return;
+		ServerConfig config = server.getConfig();
+		long silent = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRead);
+		if (silent >= config.getIdleTimeoutMillis()) {
+			server.getLog().log(EventLog.IDLE, getInetAddress(), username, String.format("silent for %d ms", silent));
+			server.getMetrics().idleDisconnected();
+			abort();
+			return;
+		}
+		if (silent >= config.getHeartbeatMillis()) {
+			send(PING);
+			scheduleHeartbeat(Math.min(config.getHeartbeatMillis(), config.getIdleTimeoutMillis() - silent));
+		} else {
+			scheduleHeartbeat(config.getHeartbeatMillis() - silent);
+		}
+	}
+
+	/**
+	 * called by the transport for every line the client sends
+	 *
+	 * @param input line without the line terminator
+	 */
+	void handleLine(String input) {
+		long start = System.nanoTime();
+		lastRead = start;
+		//the heartbeat neither takes a token nor counts as a message
+		if (input.equals(PONG)) return;
+		if (input.equals(PING)) {
+			send(PONG);
+			return;
+		}
+		if (!withinLimits(start)) return;
+		handle(input);
+		server.getMetrics().lineHandled(System.nanoTime() - start);
+	}
+
+	/**
+	 * helper method that takes a token for a line before anything is done with it
+	 * a line that is over the limit is dropped, the client is only told about the first one of a row
+	 *
+	 * @param now System.nanoTime() when the line arrived
+	 * @return if the line may be handled
+	 */
+	private boolean withinLimits(long now) {
+		if (!limited) {
+			//the transport knows the address only after it was constructed
+			limited = true;
+			sessionBucket = server.getLimiter().sessionBucket();
+			limitedAddress = getInetAddress();
+			addressBucket = server.getLimiter().acquire(limitedAddress);
+		}
+
+		boolean byAddress;
+		if (sessionBucket != null && !sessionBucket.tryTake(now)) {
+			byAddress = false;
+		} else if (addressBucket != null && !addressBucket.tryTake(now)) {
+			byAddress = true;
+		} else {
+			throttled = false;
+			return true;
+		}
+
+		server.getMetrics().lineThrottled(byAddress);
+		if (!throttled) {
+			throttled = true;
+			send(Message.error("You are sending too fast, your messages are dropped"));
+		}
+		return false;
+	}
+
+	/**
+	 * helper method that does what a line from the client asks for
+	 *
+	 * @param input line without the line terminator
+	 */
+	private void handle(String input) {
+		if (username == null) {
+			//the client wants binary frames from now on, it confirms by asking for the username again
+			//DEFLATE is BINARY with large frames compressed, unless the server never compresses
+			if (input.equals("BINARY") || input.equals("DEFLATE")) {
+				int threshold = server.getConfig().getCompressionThreshold();
+				if (input.equals("DEFLATE") && threshold > 0) compressor = new FrameCompressor(threshold, server.getMetrics());
+				binary = true;
+				send("ENTER_USERNAME");
+				return;
+			}
+
+			//welcome procedure consists of getting username and welcoming user
+			if (inputInvalid(input)) {
+				//request username from client again
+				send("ENTER_USERNAME");
+				return;
+			}
+
+			//save username if it is valid
+			this.username = input;
+			send("VALID");
+			server.getMetrics().handshakeCompleted();
+			server.getLog().log(EventLog.HANDSHAKE, getInetAddress(), username, compressor != null ? "deflate" : binary ? "binary" : "text");
+
+			//welcome user and catch them up on what was said recently
+			send(Message.info(String.format("Welcome %s!", username)));
+			if (binary) sendUsers();
+			if (server.getRecent() != null) server.getRecent().replay(this::sendRecent);
+			sendToOthers(Message.joined(id, username));
+			if (server.getCluster() != null) server.getCluster().userUp(this);
+			return;
+		}
+
+		Command command = CommandParser.parse(input, this.command);
+		switch (command.getType()) {
+			case PRIVATE -> {
+				String user = command.target();
+				Connection receiver = server.getRegistry().lookup(user);
+				if (receiver == null) {
+					send(Message.error(String.format("%s could not be found!", user)));
+					return;
+				}
+				//send a message to that user
+				Message msg = Message.privateMessage(id, username, command.text());
+				receiver.send(msg);
+				journal(MessageJournal.privateKey(username, user), msg);
+			}
+			case JOIN -> joinRoom(command.target());
+			case PART -> partRoom(command.target());
+			case ROOM -> {
+				String name = command.target();
+				Room room = server.getRooms().get(name);
+				if (room == null || !room.isMember(id)) {
+					send(Message.error(String.format("You are not in %s, use JOIN %s first", name, name)));
+					return;
+				}
+				Message msg = Message.roomMessage(room.getId(), name, id, username, command.text());
+				sendToRoom(room, msg);
+				if (server.getCluster() != null) server.getCluster().room(name, username, command.text());
+				if (room.recent() != null) room.recent().append(msg);
+				journal(name, msg);
+			}
+			case HISTORY -> sendHistory(command);
+			case WHOIS -> sendWhois(command);
+			case LOGOUT -> {
+				//say goodbye to everyone and then close the connection
+				send(Message.info(String.format("Goodbye %s!", username)));
+				close();
+			}
+			//send some great penguin facts
+			case PENGU -> send(Message.pingu(PinguinFacts.getRandomFact()));
+			case INVALID -> send(Message.error(command.getError()));
+			case CHAT -> {
+				//send a message to everyone except yourself
+				Message msg = Message.chat(id, username, input);
+				sendToOthers(msg);
+				if (server.getCluster() != null) server.getCluster().chat(username, input);
+				if (server.getRecent() != null) server.getRecent().append(msg);
+				journal(MessageJournal.LOBBY, msg);
+			}
+		}
+	}
+
+	/**
+	 * called by the transport exactly once after the connection has been closed
+	 */
+	void closed() {
+		gone = true;
+		TimerWheel.Timeout next = heartbeat;
+		if (next != null) next.cancel();
+
+		//leave the rooms first, once the user is removed its id may already belong to someone else
+		//a JOIN that holds the lock right now finishes first, one that comes later sees gone
+		synchronized (rooms) {
+			for (String name : rooms) {
+				server.getRooms().part(name, this);
+			}
+		}
+
+		if (addressBucket != null) server.getLimiter().release(limitedAddress);
+		FrameCompressor current = compressor;
+		if (current != null) current.close();
+
+		//logged before the user is removed, a server that is stopping waits for that and closes the log afterwards
+		server.getLog().log(EventLog.DISCONNECT, getInetAddress(), username, null);
+		boolean announce = username != null && !server.isStopping();
+		//inform other users while the id is still taken, once it is released the next user that logs in gets it
+		//and a LEFT sent afterwards would arrive after that user's JOINED and remove its name at the clients
+		if (announce) server.getMetrics().broadcast(server.getRegistry().broadcast(Message.left(id, username), id));
+		//remove users
+		server.getRegistry().remove(this);
+		server.getMetrics().connectionClosed();
+		if (announce && server.getCluster() != null) server.getCluster().userDown(username);
+	}
+}
@@ -0,0 +1,259 @@
+package pgdp.threads;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * structured log of what happens to a server and its connections, like connects, logins, disconnects and errors
+ * logging only puts an event into a ring buffer, which takes no lock and never blocks, a single writer thread
+ * formats the events and writes them in batches, so a slow disk or terminal never holds up the chat
+ * once the writer is a whole ring behind, new events are dropped and counted instead of waiting for it
+ *
+ * every event is one line like 2026-10-18T14:03:12.345 handshake address=/127.0.0.1 user=bob detail=binary
+ */
+class EventLog {
+	static final String SERVER = "server";
+	static final String CONNECT = "connect";
+	static final String HANDSHAKE = "handshake";
+	static final String DISCONNECT = "disconnect";
+	static final String IDLE = "idle";
+	static final String CLUSTER = "cluster";
+	static final String JOURNAL = "journal";
+	static final String ERROR = "error";
+	static final String DROPPED = "dropped";
+	static final int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * only used by the writer thread, which creates it with the first line instead of the thread starting the server
+	 */
+	private static final class TimeFormat {
+		static final DateTimeFormatter INSTANCE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS")
+				.withZone(ZoneId.systemDefault());
+	}
+
+	private final AtomicReferenceArray<Event> ring;
+	private final int mask;
+	//next position a logging thread claims
+	private final AtomicLong claimed = new AtomicLong();
+	//next position the writer reads, everything before it can be reused
+	private volatile long consumed;
+	private final LongAdder dropped = new LongAdder();
+	private final Writer out;
+	//the stream is not closed if it is System.out
+	private final boolean closeOut;
+	private final Thread writer;
+	//set by the writer before it parks, so logging threads only wake it up if it really sleeps
+	private volatile boolean sleeping;
+	private volatile boolean running = true;
+
+	/**
+	 * @param out      stream the lines are written to
+	 * @param capacity number of events that can wait for the writer, a power of two
+	 */
+	EventLog(OutputStream out, int capacity) {
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("capacity must be a power of two");
+		this.ring = new AtomicReferenceArray<>(capacity);
+		this.mask = capacity - 1;
+		this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+		this.closeOut = !(out instanceof PrintStream);
+		this.writer = new Thread(this::write, "event-log");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * @param file the lines are appended to, null for System.out
+	 * @return log of a server
+	 */
+	static EventLog open(Path file) throws IOException {
+		if (file == null) return new EventLog(System.out, DEFAULT_CAPACITY);
+		return new EventLog(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * something that concerns the whole server
+	 *
+	 * @param detail what happened
+	 */
+	void info(String detail) {
+		log(SERVER, null, null, detail, null);
+	}
+
+	/**
+	 * @param type    of the event, one of the constants
+	 * @param address of the client or node, null if none
+	 * @param user    that is concerned, null if none
+	 * @param detail  free text, null if none
+	 */
+	void log(String type, InetAddress address, String user, String detail) {
+		log(type, address, user, detail, null);
+	}
+
+	/**
+	 * @param address of the client or node, null if none
+	 * @param user    that is concerned, null if none
+	 * @param detail  what was being done
+	 * @param error   that was thrown
+	 */
+	void error(InetAddress address, String user, String detail, Throwable error) {
+		log(ERROR, address, user, detail, error);
+	}
+
+	/**
+	 * helper method that claims the next free slot of the ring and publishes the event in it
+	 * the formatting is left to the writer, the calling thread only creates the event
+	 */
+	private void log(String type, InetAddress address, String user, String detail, Throwable error) {
+		if (!running) return;
+		Event event = new Event(System.currentTimeMillis(), type, address, user, detail, error);
+		long position;
+		do {
+			position = claimed.get();
+			if (position - consumed >= ring.length()) {
+				dropped.increment();
+				return;
+			}
+		} while (!claimed.compareAndSet(position, position + 1));
+		ring.set((int) position & mask, event);
+		if (sleeping) LockSupport.unpark(writer);
+	}
+
+	/**
+	 * @return events that were dropped because the writer was too far behind
+	 */
+	long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * write everything that was logged so far and close the file
+	 * events logged afterwards are ignored
+	 */
+	void close() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * writer thread, takes all published events, writes them and flushes once per batch
+	 * parks while the ring is empty
+	 */
+	private void write() {
+		StringBuilder line = new StringBuilder(256);
+		long reported = 0;
+		try {
+			while (true) {
+				//a slot stays empty until the thread that claimed it has published its event
+				long position = consumed;
+				int batch = 0;
+				Event event;
+				while (batch < ring.length() && (event = ring.get((int) position & mask)) != null) {
+					ring.set((int) position & mask, null);
+					position++;
+					consumed = position;
+					format(event, line);
+					out.append(line);
+					batch++;
+				}
+				long lost = dropped.sum();
+				if (lost > reported) {
+					format(new Event(System.currentTimeMillis(), DROPPED, null, null, Long.toString(lost - reported), null), line);
+					out.append(line);
+					reported = lost;
+					batch++;
+				}
+				if (batch > 0) {
+					out.flush();
+					continue;
+				}
+
+				if (!running && claimed.get() == consumed) break;
+				sleeping = true;
+				if (ring.get((int) position & mask) == null && running) LockSupport.parkNanos(this, 100_000_000L);
+				sleeping = false;
+			}
+			if (closeOut) out.close();
+		} catch (IOException e) {
+			//nowhere left to log it, and nobody should fill the ring for a writer that is gone
+			running = false;
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * helper method that turns an event into one line, values with spaces are quoted
+	 */
+	private static void format(Event event, StringBuilder line) {
+		line.setLength(0);
+		TimeFormat.INSTANCE.formatTo(Instant.ofEpochMilli(event.time()), line);
+		line.append(' ').append(event.type());
+		if (event.address() != null) field(line, "address", event.address().toString());
+		if (event.user() != null) field(line, "user", event.user());
+		if (event.detail() != null) field(line, "detail", event.detail());
+		if (event.error() != null) field(line, "exception", event.error().toString());
+		line.append(System.lineSeparator());
+	}
+
+	/**
+	 * helper method that appends key=value, quoted if the value has spaces, quotes or control characters
+	 * control characters are escaped, so a user cannot forge lines or send escape sequences to a terminal
+	 */
+	private static void field(StringBuilder line, String key, String value) {
+		line.append(' ').append(key).append('=');
+		if (!needsQuotes(value)) {
+			line.append(value);
+			return;
+		}
+		line.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"', '\\' -> line.append('\\').append(c);
+				case '\n' -> line.append("\\n");
+				case '\r' -> line.append("\\r");
+				case '\t' -> line.append("\\t");
+				default -> {
+					if (Character.isISOControl(c)) line.append(String.format("\\u%04x", (int) c));
+					else line.append(c);
+				}
+			}
+		}
+		line.append('"');
+	}
+
+	private static boolean needsQuotes(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == ' ' || c == '"' || Character.isISOControl(c)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * one entry of the log, only read by the writer
+	 */
+	private record Event(long time, String type, InetAddress address, String user, String detail, Throwable error) {
+	}
+}
@@ -0,0 +1,217 @@
+package pgdp.threads;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * single thread that serves many non-blocking channels through one selector
+ * other threads hand work to the loop with execute()
+ * a handler or task that throws only fails itself, the loop keeps serving all other channels
+ */
+class EventLoop extends Thread {
+	/**
+	 * callback for channels that are registered with an event loop
+	 */
+	interface Handler {
+		/**
+		 * called on the event loop whenever the key is ready
+		 *
+		 * @param key that is ready
+		 */
+		void handle(SelectionKey key) throws IOException;
+
+		/**
+		 * called on the event loop if handle() failed, the channel should be closed
+		 *
+		 * @param exc that was thrown, an IOException of the channel or whatever the code handling it threw
+		 */
+		void failed(Exception exc);
+	}
+
+	private final Selector selector;
+	private final EventLog log;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	//delayed tasks, only touched by the loop itself
+	private final PriorityQueue<Delayed> delayed = new PriorityQueue<>(Comparator.comparingLong(Delayed::deadline));
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	//all channels of this loop are read one after another, so they can share one buffer
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+	private volatile boolean running = true;
+
+	/**
+	 * @param name of the thread
+	 * @param log  that errors of handlers and tasks are written to
+	 */
+	public EventLoop(String name, EventLog log) throws IOException {
+		super(name);
+		this.selector = Selector.open();
+		this.log = log;
+		setDaemon(true);
+	}
+
+	Selector selector() {
+		return selector;
+	}
+
+	EventLog log() {
+		return log;
+	}
+
+	ByteBuffer readBuffer() {
+		return readBuffer;
+	}
+
+	/**
+	 * @return if the calling thread is this event loop
+	 */
+	boolean inEventLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * run a task on the event loop
+	 *
+	 * @param task to be run
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * run a task on the event loop once the delay is over
+	 *
+	 * @param task       to be run
+	 * @param delayNanos how long to wait
+	 */
+	void schedule(Runnable task, long delayNanos) {
+		long deadline = System.nanoTime() + delayNanos;
+		execute(() -> delayed.add(new Delayed(deadline, task)));
+	}
+
+	/**
+	 * stop the loop and close all channels that are still registered
+	 */
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * run method of thread
+	 */
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				//do not block if the loop queued tasks for itself, and not longer than the next delayed task
+				if (!tasks.isEmpty()) {
+					selector.selectNow();
+				} else if (delayed.isEmpty()) {
+					selector.select();
+				} else {
+					long wait = delayed.peek().deadline() - System.nanoTime();
+					if (wait < 1_000_000) {
+						selector.selectNow();
+					} else {
+						selector.select(wait / 1_000_000);
+					}
+				}
+				wakeupPending.set(false);
+				runTasks();
+				runDelayed();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Handler handler = (Handler) key.attachment();
+					try {
+						handler.handle(key);
+					} catch (CancelledKeyException e) {
+						//the channel was closed while handling it
+					} catch (IOException | RuntimeException e) {
+						failed(handler, e);
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.error(null, null, "selecting on " + getName(), e);
+		}
+		closeAll();
+	}
+
+	/**
+	 * helper method that lets a handler close its channel, if that fails as well the channel is closed by the loop
+	 */
+	private void failed(Handler handler, Exception exc) {
+		try {
+			handler.failed(exc);
+		} catch (RuntimeException e) {
+			log.error(null, null, "closing a channel after it failed", e);
+		}
+	}
+
+	/**
+	 * helper method that closes all channels that are still registered and the selector
+	 */
+	private void closeAll() {
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				//closed anyway
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.error(null, null, "closing the selector of " + getName(), e);
+		}
+	}
+
+	/**
+	 * helper method that runs a task, one that throws does not take the loop down with it
+	 */
+	private void run(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			log.error(null, null, "running a task on " + getName(), e);
+		}
+	}
+
+	/**
+	 * helper method that runs all delayed tasks that are due
+	 */
+	private void runDelayed() {
+		long now = System.nanoTime();
+		while (!delayed.isEmpty() && delayed.peek().deadline() - now <= 0) {
+			run(delayed.poll().task());
+		}
+	}
+
+	/**
+	 * helper method that runs all tasks queued by other threads
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			run(task);
+		}
+	}
+
+	private record Delayed(long deadline, Runnable task) {
+	}
+}
@@ -0,0 +1,101 @@
+package pgdp.threads;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * one message of the binary protocol, a client asks for it by sending BINARY instead of its username
+ * a frame looks like [int length][byte type][int sender][int room][payload], the length counts everything after itself
+ * the server only sends the ids and the plain text, the client looks up the names and adds the colors
+ *
+ * @param type    of the message, one of the constants
+ * @param sender  id of the user that sent it, 0 if none
+ * @param room    id of the room it was sent to, 0 if none
+ * @param payload plain text of the message
+ */
+record Frame(byte type, int sender, int room, String payload) {
+	//line that is shown as it is
+	static final byte RAW = 0;
+	static final byte CHAT = 1;
+	static final byte ROOM = 2;
+	static final byte PRIVATE = 3;
+	static final byte INFO = 4;
+	static final byte ERROR = 5;
+	static final byte PINGU = 6;
+	//sender is a user that is online, the payload is its name, nothing is shown
+	static final byte USER = 7;
+	//sender logged in, the payload is its name
+	static final byte JOINED = 8;
+	//sender logged out, the payload is its name
+	static final byte LEFT = 9;
+	//the receiver joined the room, the payload is the name of the room
+	static final byte ROOM_JOINED = 10;
+	//the receiver left the room, the payload is the name of the room
+	static final byte ROOM_LEFT = 11;
+	//only for clients that asked for DEFLATE, the payload is not text but the next part of the deflate stream
+	//of the connection, and it inflates to one or more whole frames, see FrameCompressor
+	static final byte DEFLATED = 12;
+
+	static final int HEADER = Byte.BYTES + Integer.BYTES + Integer.BYTES;
+	//frames larger than this are refused by the client, nothing the server sends comes close
+	static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * @return the frame including its length
+	 */
+	static byte[] encode(byte type, int sender, int room, String payload) {
+		byte[] text = payload.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + HEADER + text.length);
+		frame.putInt(HEADER + text.length);
+		frame.put(type);
+		frame.putInt(sender);
+		frame.putInt(room);
+		frame.put(text);
+		return frame.array();
+	}
+
+	/**
+	 * read the next frame
+	 *
+	 * @param in stream of frames
+	 * @return the frame, null if the stream ended before it
+	 */
+	static Frame read(DataInputStream in) throws IOException {
+		int length = readLength(in);
+		if (length < 0) return null;
+		byte type = in.readByte();
+		int sender = in.readInt();
+		int room = in.readInt();
+		return new Frame(type, sender, room, new String(readPayload(in, length), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param in stream of frames
+	 * @return length of the next frame, -1 if the stream ended before it
+	 */
+	static int readLength(DataInputStream in) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return -1;
+		}
+		if (length < HEADER || length > MAX_LENGTH)
+			throw new IOException("invalid frame length " + length);
+		return length;
+	}
+
+	/**
+	 * @param in     stream of frames, right after the header
+	 * @param length of the frame
+	 * @return payload of the frame
+	 */
+	static byte[] readPayload(DataInputStream in, int length) throws IOException {
+		byte[] payload = new byte[length - HEADER];
+		in.readFully(payload);
+		return payload;
+	}
+}
@@ -0,0 +1,74 @@
+package pgdp.threads;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * compresses the frames of one client that asked for DEFLATE instead of BINARY
+ * all frames of the connection go through one deflate stream, so later frames refer back to earlier ones
+ * and repeated names, facts and colors of WHOIS or the backfill only cost a few bytes after the first time
+ * every compressed frame ends with a sync flush, so the client can inflate it right away
+ * frames below the threshold are sent as they are, compressing them would cost more than it saves
+ *
+ * used by the thread that writes to the client, the deflater holds native memory until close() is called once the connection is gone
+ */
+class FrameCompressor {
+	//texts both sides know before the first frame, so even the first WHOIS or backfill finds its colors
+	static final byte[] DICTIONARY = (ConsoleColors.RESET + ConsoleColors.WHITE_BOLD + ConsoleColors.RED_BOLD_BRIGHT
+			+ ConsoleColors.CYAN_BOLD + ConsoleColors.BLUE_BACKGROUND + ConsoleColors.YELLOW_BOLD_BRIGHT
+			+ " joined the chat! has left the chat!⚠ ERROR: Did you know: connected since Monday, Tuesday, Wednesday, "
+			+ "Thursday, Friday, Saturday, Sunday, - penguin").getBytes(StandardCharsets.UTF_8);
+
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final int threshold;
+	private final ServerMetrics metrics;
+	private byte[] output = new byte[4096];
+	private boolean closed;
+
+	/**
+	 * @param threshold frames with fewer bytes than this are not compressed
+	 * @param metrics   that count the bytes before and after compressing
+	 */
+	public FrameCompressor(int threshold, ServerMetrics metrics) {
+		this.threshold = threshold;
+		this.metrics = metrics;
+		this.deflater.setDictionary(DICTIONARY);
+	}
+
+	/**
+	 * @param frame including its length
+	 * @return the frame itself if it is too small, otherwise a DEFLATED frame that inflates to it
+	 */
+	synchronized byte[] compress(byte[] frame) {
+		//nothing is read anymore once the connection is closed
+		if (frame.length < threshold || closed) return frame;
+		deflater.setInput(frame);
+		//the frame header is written once the length is known
+		int length = Integer.BYTES + Frame.HEADER;
+		while (true) {
+			length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+			//a full buffer means the deflater may have more
+			if (length < output.length) break;
+			output = Arrays.copyOf(output, output.length * 2);
+		}
+		ByteBuffer header = ByteBuffer.wrap(output, 0, Integer.BYTES + Frame.HEADER);
+		header.putInt(length - Integer.BYTES);
+		header.put(Frame.DEFLATED);
+		header.putInt(0);
+		header.putInt(0);
+		metrics.compressed(frame.length, length);
+		return Arrays.copyOf(output, length);
+	}
+
+	/**
+	 * release the native memory of the deflater right away instead of whenever the garbage collector gets to it
+	 * the writing thread may still be compressing while the connection closes, so this waits for it
+	 */
+	synchronized void close() {
+		if (closed) return;
+		closed = true;
+		deflater.end();
+	}
+}
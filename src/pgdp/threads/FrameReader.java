@@ -0,0 +1,82 @@
+package pgdp.threads;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * reads the frames from the server for the client, inflating the DEFLATED ones
+ * keeps one inflater for the whole connection, the counterpart of the FrameCompressor of the server
+ */
+class FrameReader {
+	private final DataInputStream in;
+	private Inflater inflater;
+	//frames of the last DEFLATED frame that were not read yet
+	private DataInputStream inflated;
+
+	/**
+	 * @param in stream from the server, after the line that asked for frames
+	 */
+	public FrameReader(DataInputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * read the next frame
+	 *
+	 * @return the frame, null if the stream ended before it
+	 */
+	Frame read() throws IOException {
+		while (true) {
+			if (inflated != null) {
+				if (inflated.available() > 0) return Frame.read(inflated);
+				inflated = null;
+			}
+
+			int length = Frame.readLength(in);
+			if (length < 0) return null;
+			byte type = in.readByte();
+			int sender = in.readInt();
+			int room = in.readInt();
+			byte[] payload = Frame.readPayload(in, length);
+			if (type != Frame.DEFLATED) return new Frame(type, sender, room, new String(payload, StandardCharsets.UTF_8));
+			inflated = new DataInputStream(new ByteArrayInputStream(inflate(payload)));
+		}
+	}
+
+	/**
+	 * helper method that continues the deflate stream of the connection
+	 */
+	private byte[] inflate(byte[] compressed) throws IOException {
+		if (inflater == null) {
+			inflater = new Inflater(true);
+			inflater.setDictionary(FrameCompressor.DICTIONARY);
+		}
+		inflater.setInput(compressed);
+		ByteArrayOutputStream frames = new ByteArrayOutputStream(compressed.length * 4);
+		byte[] buffer = new byte[4096];
+		try {
+			//the server flushes after every frame, so all of the input inflates right away
+			//a full buffer means the inflater may have more
+			int count;
+			do {
+				count = inflater.inflate(buffer);
+				frames.write(buffer, 0, count);
+			} while (count == buffer.length || (count > 0 && !inflater.needsInput()));
+		} catch (DataFormatException e) {
+			throw new IOException("invalid compressed frame", e);
+		}
+		return frames.toByteArray();
+	}
+
+	/**
+	 * release the native memory of the inflater, the reader cannot be used afterwards
+	 */
+	void close() {
+		if (inflater != null) inflater.end();
+	}
+}
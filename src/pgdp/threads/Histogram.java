@@ -0,0 +1,138 @@
+package pgdp.threads;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * distribution of non-negative values, usually latencies in nanoseconds
+ * values are counted in logarithmic buckets that are split into 32 linear steps each, so every
+ * percentile is exact to about 3 % no matter how large the values get
+ * every bucket is a LongAdder, so threads that record the same latencies at once add to cells of their own
+ * instead of fighting over one cache line, the buckets are only summed up when somebody reads them
+ */
+class Histogram {
+	//every power of two is split into 2^SUB_BUCKET_BITS buckets
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	//values below this are counted exactly
+	private static final int LINEAR = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	Histogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param value to be counted, negative values count as 0
+	 */
+	void record(long value) {
+		value = Math.max(0, value);
+		counts[bucket(value)].increment();
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	long getMax() {
+		return max.get();
+	}
+
+	double getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return largest value that belongs to the same bucket as the value at the percentile
+	 */
+	long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		//count the buckets themselves, the total may already include values that are still being recorded
+		long[] buckets = snapshot();
+		long n = 0;
+		for (long bucket : buckets) {
+			n += bucket;
+		}
+		if (n == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			if (seen >= rank) return Math.min(highestValue(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * @param value upper bound
+	 * @return how many recorded values are at most the bound, rounded to bucket precision
+	 */
+	long getCountAtOrBelow(long value) {
+		if (value < 0) return 0;
+		int last = bucket(value);
+		long seen = 0;
+		for (int i = 0; i <= last; i++) {
+			seen += counts[i].sum();
+		}
+		return seen;
+	}
+
+	/**
+	 * helper method that sums up every bucket once, so both passes of a percentile see the same counts
+	 */
+	private long[] snapshot() {
+		long[] buckets = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = counts[i].sum();
+		}
+		return buckets;
+	}
+
+	/**
+	 * helper method that finds the bucket of a value
+	 */
+	private static int bucket(long value) {
+		if (value < LINEAR) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		//the top SUB_BUCKET_BITS + 1 bits of the value, between SUB_BUCKETS and 2 * SUB_BUCKETS - 1
+		int top = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+		return LINEAR + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + top - SUB_BUCKETS;
+	}
+
+	/**
+	 * helper method that finds the largest value counted in a bucket
+	 */
+	private static long highestValue(int bucket) {
+		if (bucket < LINEAR) return bucket;
+		int exponent = (bucket - LINEAR) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+		long top = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * @return p50, p99, p999 and max in milliseconds, assuming the values are nanoseconds
+	 */
+	@Override
+	public String toString() {
+		return String.format("count=%d p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms", getCount(),
+				getValueAtPercentile(50) / 1e6, getValueAtPercentile(99) / 1e6,
+				getValueAtPercentile(99.9) / 1e6, getMax() / 1e6);
+	}
+}
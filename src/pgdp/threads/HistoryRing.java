@@ -0,0 +1,67 @@
+package pgdp.threads;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * fixed size ring of the most recent messages, used to catch up users that just joined
+ * the messages are already encoded, so replaying them only writes bytes
+ *
+ * appending and reading never lock or allocate: every writer takes a sequence number, stores the
+ * message in its slot and then stamps the slot with that number; a reader only uses slots whose
+ * stamp matches before and after reading, everything else is overwritten or not written yet
+ */
+class HistoryRing {
+	private final int size;
+	private final int mask;
+	private final AtomicReferenceArray<Message> messages;
+	private final AtomicLongArray stamps;
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * @param size number of messages that are kept
+	 */
+	public HistoryRing(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("ring needs at least one slot");
+		this.size = size;
+		//round up to a power of two, so the slot is a simple mask of the sequence number
+		int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		this.mask = capacity - 1;
+		this.messages = new AtomicReferenceArray<>(capacity);
+		this.stamps = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			stamps.set(i, -1);
+		}
+	}
+
+	/**
+	 * @param msg to be kept
+	 */
+	void append(Message msg) {
+		long seq = sequence.getAndIncrement();
+		int slot = (int) (seq & mask);
+		//invalidate the slot first, so nobody reads the new message with the old stamp
+		stamps.set(slot, -1);
+		messages.set(slot, msg);
+		stamps.set(slot, seq);
+	}
+
+	/**
+	 * hand the most recent messages to the consumer, oldest first
+	 * messages that are being overwritten during the call are skipped
+	 *
+	 * @param consumer of the messages
+	 */
+	void replay(Consumer<Message> consumer) {
+		long end = sequence.get();
+		for (long seq = Math.max(0, end - size); seq < end; seq++) {
+			int slot = (int) (seq & mask);
+			if (stamps.get(slot) != seq) continue;
+			Message msg = messages.get(slot);
+			if (stamps.get(slot) == seq) consumer.accept(msg);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package pgdp.threads;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * bytes of a line that has not been terminated yet, for non-blocking readers that get the input in arbitrary pieces
+ * nothing is allocated while every line arrives in one piece
+ */
+final class LineBuffer {
+	private final int maxLength;
+	private byte[] partial;
+	private int length;
+
+	/**
+	 * @param maxLength of a line, longer lines are dropped
+	 */
+	LineBuffer(int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * join the kept bytes with the bytes up to the line terminator
+	 *
+	 * @param buffer with the rest of the line
+	 * @param from   first byte of the rest
+	 * @param to     position of the line terminator
+	 * @return the line without \r, or null if it was too long
+	 */
+	String line(ByteBuffer buffer, int from, int to) {
+		if (length == 0 && to - from <= maxLength) {
+			//the usual case, the whole line arrived at once
+			if (to > from && buffer.get(to - 1) == '\r') to--;
+			byte[] bytes = new byte[to - from];
+			buffer.get(from, bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		append(buffer, from, to);
+		if (length > maxLength) {
+			length = 0;
+			partial = null;
+			return null;
+		}
+		int end = length;
+		if (end > 0 && partial[end - 1] == '\r') end--;
+		String line = new String(partial, 0, end, StandardCharsets.UTF_8);
+		length = 0;
+		partial = null;
+		return line;
+	}
+
+	/**
+	 * keep bytes until the rest of the line arrives
+	 *
+	 * @param buffer with the start of the line
+	 * @param from   first byte
+	 * @param to     end of the bytes
+	 */
+	void append(ByteBuffer buffer, int from, int to) {
+		int count = to - from;
+		if (count == 0 || length > maxLength) {
+			//drop everything above the maximum until the line ends
+			return;
+		}
+		if (partial == null) {
+			partial = new byte[Math.max(count, 128)];
+		} else if (length + count > partial.length) {
+			partial = Arrays.copyOf(partial, Math.max(length + count, partial.length * 2));
+		}
+		buffer.get(from, partial, length, count);
+		length += count;
+	}
+}
@@ -0,0 +1,443 @@
+package pgdp.threads;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * load test of a chat server on this machine
+ * many simulated users speak the real protocol: they log in, chat, send private messages, ask WHOIS and log out
+ * and in again; every user waits a random think time after each action, so a fixed number of users makes the load
+ *
+ * every chat message carries the time it was sent, the receivers measure how long the delivery took
+ */
+public class LoadGenerator {
+	//marks the send time in a payload
+	static final String STAMP = "~sent:";
+
+	private String host = "localhost";
+	private int port = 3000;
+	private int users = 500;
+	private double rate = 1;
+	private int durationSeconds = 30;
+	private int warmupSeconds = 5;
+	private int rooms = 0;
+	private int chatWeight = 20;
+	private int privateWeight = 75;
+	private int whoisWeight = 4;
+	private int logoutWeight = 1;
+
+	public LoadGenerator host(String host) {
+		if (host == null || host.isBlank())
+			throw new IllegalArgumentException("host cannot be blank");
+		this.host = host;
+		return this;
+	}
+
+	public LoadGenerator port(int port) {
+		if (port < 0 || port > 65535)
+			throw new IllegalArgumentException("port number invalid");
+		this.port = port;
+		return this;
+	}
+
+	public LoadGenerator users(int users) {
+		if (users < 2)
+			throw new IllegalArgumentException("need at least two users");
+		this.users = users;
+		return this;
+	}
+
+	/**
+	 * @param rate actions per second of every user
+	 */
+	public LoadGenerator rate(double rate) {
+		if (!(rate > 0))
+			throw new IllegalArgumentException("rate must be positive");
+		this.rate = rate;
+		return this;
+	}
+
+	public LoadGenerator durationSeconds(int durationSeconds) {
+		if (durationSeconds < 1)
+			throw new IllegalArgumentException("duration must be at least one second");
+		this.durationSeconds = durationSeconds;
+		return this;
+	}
+
+	/**
+	 * @param warmupSeconds after all users logged in that are not measured
+	 */
+	public LoadGenerator warmupSeconds(int warmupSeconds) {
+		if (warmupSeconds < 0)
+			throw new IllegalArgumentException("warmup cannot be negative");
+		this.warmupSeconds = warmupSeconds;
+		return this;
+	}
+
+	/**
+	 * @param rooms the users are spread over, their chat messages go to their room, 0 to chat in the lobby
+	 */
+	public LoadGenerator rooms(int rooms) {
+		if (rooms < 0)
+			throw new IllegalArgumentException("number of rooms cannot be negative");
+		this.rooms = rooms;
+		return this;
+	}
+
+	/**
+	 * @param chat    weight of chat messages
+	 * @param direct  weight of private messages
+	 * @param whois   weight of WHOIS requests
+	 * @param logout  weight of logging out and in again
+	 */
+	public LoadGenerator mix(int chat, int direct, int whois, int logout) {
+		if (chat < 0 || direct < 0 || whois < 0 || logout < 0 || chat + direct + whois + logout == 0)
+			throw new IllegalArgumentException("weights cannot be negative and not all be 0");
+		this.chatWeight = chat;
+		this.privateWeight = direct;
+		this.whoisWeight = whois;
+		this.logoutWeight = logout;
+		return this;
+	}
+
+	/**
+	 * @param args settings like users=1000 or mix=20,75,4,1
+	 * @return this
+	 */
+	public LoadGenerator parse(String... args) {
+		for (String arg : args) {
+			int separation = arg.indexOf('=');
+			if (separation <= 0)
+				throw new IllegalArgumentException("setting must look like key=value: " + arg);
+			String value = arg.substring(separation + 1).strip();
+			try {
+				switch (arg.substring(0, separation).strip()) {
+					case "host" -> host(value);
+					case "port" -> port(Integer.parseInt(value));
+					case "users" -> users(Integer.parseInt(value));
+					case "rate" -> rate(Double.parseDouble(value));
+					case "duration" -> durationSeconds(Integer.parseInt(value));
+					case "warmup" -> warmupSeconds(Integer.parseInt(value));
+					case "rooms" -> rooms(Integer.parseInt(value));
+					case "mix" -> {
+						int[] weights = Arrays.stream(value.split(",")).mapToInt(w -> Integer.parseInt(w.strip())).toArray();
+						if (weights.length != 4)
+							throw new IllegalArgumentException("mix must look like chat,private,whois,logout: " + arg);
+						mix(weights[0], weights[1], weights[2], weights[3]);
+					}
+					default -> throw new IllegalArgumentException("unknown setting: " + arg);
+				}
+			} catch (NumberFormatException exc) {
+				throw new IllegalArgumentException("number invalid: " + arg);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * log in all users, let them chat for the warmup and the duration and log them out again
+	 *
+	 * @return what was measured
+	 */
+	public Result run() throws InterruptedException {
+		Result result = new Result(users, durationSeconds);
+		LoadClient[] clients = new LoadClient[users];
+
+		ExecutorService readers = createReaders();
+		AtomicInteger count = new AtomicInteger();
+		ScheduledExecutorService senders = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+			Thread thread = new Thread(task, "load-sender-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		//log everyone in before the clock starts
+		CountDownLatch connected = new CountDownLatch(users);
+		for (int i = 0; i < users; i++) {
+			int user = i;
+			senders.execute(() -> {
+				try {
+					clients[user] = connect(user, result, readers);
+				} catch (IOException e) {
+					result.failedUsers.increment();
+				}
+				connected.countDown();
+			});
+		}
+		connected.await();
+
+		long now = System.nanoTime();
+		result.from = now + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		result.until = result.from + TimeUnit.SECONDS.toNanos(durationSeconds);
+		for (int i = 0; i < users; i++) {
+			if (clients[i] == null) continue;
+			int user = i;
+			senders.schedule(() -> step(user, clients, result, senders, readers), thinkTime(), TimeUnit.NANOSECONDS);
+		}
+
+		//give the messages that are on their way a second to arrive
+		TimeUnit.NANOSECONDS.sleep(result.until - System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+		senders.shutdownNow();
+		senders.awaitTermination(10, TimeUnit.SECONDS);
+		for (LoadClient client : clients) {
+			if (client != null) client.logout();
+		}
+		readers.shutdownNow();
+		return result;
+	}
+
+	/**
+	 * helper method that creates the executor with one reading thread per user
+	 * virtual threads if there are any, otherwise platform threads with small stacks so thousands of them fit
+	 */
+	private static ExecutorService createReaders() {
+		ExecutorService readers = ChatServer.virtualThreadExecutor();
+		if (readers != null) return readers;
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(null, task, "load-reader-" + count.getAndIncrement(), 256 * 1024);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * helper method that does one action of one user and plans its next one
+	 */
+	private void step(int user, LoadClient[] clients, Result result, ScheduledExecutorService senders, ExecutorService readers) {
+		long now = System.nanoTime();
+		if (now - result.until >= 0) return;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		LoadClient client = clients[user];
+		String stamp = STAMP + now;
+
+		int pick = random.nextInt(chatWeight + privateWeight + whoisWeight + logoutWeight);
+		try {
+			if (pick < chatWeight) {
+				client.send(rooms > 0 ? roomName(user) + " " + stamp : stamp);
+			} else if ((pick -= chatWeight) < privateWeight) {
+				//anyone but yourself
+				int receiver = (user + 1 + random.nextInt(users - 1)) % users;
+				client.send("@" + username(receiver) + " " + stamp);
+			} else if ((pick -= privateWeight) < whoisWeight) {
+				client.whoisSent = now;
+				client.send("WHOIS");
+			} else {
+				client.logout();
+				clients[user] = connect(user, result, readers);
+			}
+			if (now - result.from >= 0) result.sent.increment();
+		} catch (IOException e) {
+			//the user could not log in again and stops
+			result.failedUsers.increment();
+			return;
+		}
+		senders.schedule(() -> step(user, clients, result, senders, readers), thinkTime(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * helper method that connects and logs in one user and starts reading its messages
+	 */
+	private LoadClient connect(int user, Result result, ExecutorService readers) throws IOException {
+		long start = System.nanoTime();
+		LoadClient client = new LoadClient(host, port, result);
+		client.login(username(user));
+		if (rooms > 0) client.send("JOIN " + roomName(user));
+		result.handshake.record(System.nanoTime() - start);
+		readers.execute(client::read);
+		return client;
+	}
+
+	/**
+	 * @return random think time in nanoseconds, exponentially distributed with a mean of 1 / rate
+	 */
+	private long thinkTime() {
+		double seconds = -Math.log(1 - ThreadLocalRandom.current().nextDouble()) / rate;
+		return (long) (seconds * 1e9);
+	}
+
+	private String roomName(int user) {
+		return "#load-" + user % rooms;
+	}
+
+	private static String username(int user) {
+		return "load-" + user;
+	}
+
+	/**
+	 * run a load test, optionally against a server that is started in this JVM
+	 *
+	 * @param args settings, see parse(), and server=MODE to start a server with that mode on the port
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		List<String> settings = new ArrayList<>(Arrays.asList(args));
+		String mode = null;
+		for (String arg : args) {
+			if (arg.startsWith("server=")) {
+				mode = arg.substring(7).strip();
+				settings.remove(arg);
+			}
+		}
+		LoadGenerator generator = new LoadGenerator().parse(settings.toArray(new String[0]));
+
+		if (mode != null) {
+			ServerConfig config = new ServerConfig().mode(ServerConfig.Mode.valueOf(mode.toUpperCase()))
+					.maxConnections(generator.users * 2);
+			Thread server = new Thread(() -> new ChatServer(String.valueOf(generator.port), config));
+			server.setDaemon(true);
+			server.start();
+			Thread.sleep(500);
+		}
+		System.out.println(generator.run());
+	}
+
+	/**
+	 * what one load test measured, only actions inside the measured window are counted
+	 */
+	public static class Result {
+		final Histogram delivery = new Histogram();
+		final Histogram whois = new Histogram();
+		final Histogram handshake = new Histogram();
+		final LongAdder sent = new LongAdder();
+		final LongAdder delivered = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder failedUsers = new LongAdder();
+		private final int users;
+		private final int seconds;
+		//measured window in System.nanoTime()
+		volatile long from = Long.MAX_VALUE;
+		volatile long until = Long.MAX_VALUE;
+
+		Result(int users, int seconds) {
+			this.users = users;
+			this.seconds = seconds;
+		}
+
+		/**
+		 * @param sent time of the message
+		 * @return if the time is inside the measured window
+		 */
+		boolean measured(long sent) {
+			return sent - from >= 0 && sent - until < 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("users=%d seconds=%d failedUsers=%d errors=%d%n", users, seconds, failedUsers.sum(), errors.sum())
+					+ String.format("sent=%d (%.1f/s) delivered=%d (%.1f/s)%n", sent.sum(), sent.sum() / (double) seconds,
+					delivered.sum(), delivered.sum() / (double) seconds)
+					+ String.format("delivery  %s%n", delivery)
+					+ String.format("whois     %s%n", whois)
+					+ String.format("handshake %s", handshake);
+		}
+	}
+}
+
+/**
+ * one simulated user, a chat client without a console
+ */
+class LoadClient extends ChatClient {
+	private final BufferedReader in;
+	private final LoadGenerator.Result result;
+	//when the pending WHOIS was sent, 0 if none is pending
+	volatile long whoisSent;
+
+	LoadClient(String host, int port, LoadGenerator.Result result) throws IOException {
+		super(host, String.valueOf(port));
+		if (socket == null)
+			throw new IOException("could not connect to " + host + ":" + port);
+		this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		this.result = result;
+	}
+
+	/**
+	 * log in, the name may still be taken for a moment by the last session of the same user
+	 *
+	 * @param username to log in with
+	 */
+	void login(String username) throws IOException {
+		for (int attempt = 0; attempt < 100; attempt++) {
+			String line = in.readLine();
+			if (line == null)
+				throw new IOException("server closed the connection during login");
+			if (line.equals("VALID")) return;
+			if (!line.equals("ENTER_USERNAME")) continue;
+			if (attempt > 0) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted during login");
+				}
+			}
+			send(username);
+		}
+		throw new IOException(username + " is taken");
+	}
+
+	/**
+	 * reads everything the server sends and measures the messages of the load test
+	 */
+	void read() {
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (heartbeat(line)) continue;
+				int stamp = line.lastIndexOf(LoadGenerator.STAMP);
+				if (stamp >= 0) {
+					long sent = parseStamp(line, stamp + LoadGenerator.STAMP.length());
+					if (result.measured(sent)) {
+						result.delivery.record(System.nanoTime() - sent);
+						result.delivered.increment();
+					}
+				} else if (line.startsWith("- ") && whoisSent != 0) {
+					//first line of the user list
+					if (result.measured(whoisSent)) result.whois.record(System.nanoTime() - whoisSent);
+					whoisSent = 0;
+				} else if (line.contains("ERROR")) {
+					result.errors.increment();
+				}
+			}
+		} catch (IOException e) {
+			//the connection was closed
+		}
+	}
+
+	/**
+	 * log out and close the connection without waiting for the goodbye
+	 */
+	void logout() {
+		send("LOGOUT");
+		try {
+			socket.close();
+		} catch (IOException e) {
+			//closed anyway
+		}
+	}
+
+	/**
+	 * helper method that reads the digits of a send time
+	 */
+	private static long parseStamp(String line, int start) {
+		long value = 0;
+		boolean negative = start < line.length() && line.charAt(start) == '-';
+		for (int i = negative ? start + 1 : start; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') break;
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+}
@@ -0,0 +1,183 @@
+package pgdp.threads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * connection of a client in the same JVM, without a socket or a thread in between
+ * a line the client writes is handled right away on the writing thread, like the reading thread of a socket would,
+ * everything the server sends is queued as the bytes a socket would carry, binary frames included,
+ * so tests and benchmarks run the whole protocol in memory with thousands of sessions per second
+ * nothing is ever dropped for a slow client, the queue has no limit
+ */
+class LocalConnection extends Connection {
+	//how long the client waits for the server before reading fails, like a socket with a timeout
+	static final int READ_TIMEOUT_MILLIS = 5000;
+	//marks the end of the bytes for the client
+	private static final byte[] END = new byte[0];
+
+	private final BlockingQueue<byte[]> toClient = new LinkedBlockingQueue<>();
+	//senders take turns, a compressed stream must be encoded and queued in the same order
+	private final Object sendLock = new Object();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final InputStream input = new ClientInput();
+	private final OutputStream output = new ClientOutput();
+
+	LocalConnection(ChatServer server) {
+		super(server);
+	}
+
+	/**
+	 * @return stream of everything the server sends to the client
+	 */
+	InputStream getInputStream() {
+		return input;
+	}
+
+	/**
+	 * @return stream the client writes its lines to, every complete line is handled before write() returns
+	 */
+	OutputStream getOutputStream() {
+		return output;
+	}
+
+	/**
+	 * the client hangs up, like closing its socket
+	 */
+	void disconnect() {
+		close();
+	}
+
+	/**
+	 * only called by the server for a client above the limit
+	 *
+	 * @param rejection line the client gets before it is closed
+	 */
+	void reject(byte[] rejection) {
+		closed.set(true);
+		toClient.add(rejection);
+		toClient.add(END);
+	}
+
+	/**
+	 * encode on the sending thread, there is no writing thread that could do it
+	 * the lock keeps encode() to one thread at a time, like the writing thread of the other transports
+	 */
+	@Override
+	void send(Message msg) {
+		byte[] bytes;
+		synchronized (sendLock) {
+			if (closed.get()) return;
+			bytes = encode(msg);
+			toClient.add(bytes);
+		}
+		server.getMetrics().written(1, bytes.length);
+	}
+
+	/**
+	 * close right away, everything that was sent is already queued for the client
+	 */
+	@Override
+	void close() {
+		if (!closed.compareAndSet(false, true)) return;
+		//after a send that is still queueing, the end must be the last thing the client reads
+		synchronized (sendLock) {
+			toClient.add(END);
+		}
+		closed();
+	}
+
+	@Override
+	InetAddress getInetAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+
+	/**
+	 * what the client reads, blocks until the server sent something
+	 */
+	private class ClientInput extends InputStream {
+		private byte[] current = END;
+		private int position;
+		private boolean ended;
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) return 0;
+			if (position == current.length) {
+				if (ended) return -1;
+				try {
+					current = toClient.poll(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				if (current == null) {
+					current = END;
+					throw new SocketTimeoutException("Read timed out");
+				}
+				position = 0;
+				if (current == END) {
+					ended = true;
+					return -1;
+				}
+			}
+			int count = Math.min(length, current.length - position);
+			System.arraycopy(current, position, bytes, offset, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public synchronized int available() {
+			return current.length - position;
+		}
+	}
+
+	/**
+	 * what the client writes, split into lines like the transports do
+	 */
+	private class ClientOutput extends OutputStream {
+		private final LineBuffer partialLine = new LineBuffer(ChannelConnection.MAX_LINE_LENGTH);
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+			if (closed.get())
+				throw new IOException("connection closed");
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			int start = offset;
+			for (int i = offset; i < offset + length; i++) {
+				if (bytes[i] != '\n') continue;
+				String line = partialLine.line(buffer, start, i);
+				start = i + 1;
+				if (line != null) handleLine(line);
+				if (closed.get()) return;
+			}
+			partialLine.append(buffer, start, offset + length);
+		}
+
+		@Override
+		public void close() {
+			disconnect();
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package pgdp.threads;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * message from the server to its clients
+ * encoded exactly once per protocol, so a broadcast hands the same bytes to every receiver
+ * the binary frame is cheap and encoded right away, the colored line for text clients is only
+ * formatted once the first text client or the journal needs it, see Frame
+ */
+final class Message {
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+	private final byte type;
+	private final String user;
+	private final String roomName;
+	private final String payload;
+	private final byte[] frame;
+	//formatted the first time it is needed, threads that race each format the same text
+	private volatile String text;
+	private volatile byte[] line;
+
+	private Message(byte type, int sender, String user, int room, String roomName, String payload) {
+		this.type = type;
+		this.user = user;
+		this.roomName = roomName;
+		this.payload = payload;
+		this.frame = Frame.encode(type, sender, room, payload);
+	}
+
+	private Message(byte type, String payload) {
+		this(type, 0, null, 0, null, payload);
+	}
+
+	/**
+	 * @param text that is sent as it is, for example a protocol keyword
+	 * @return message
+	 */
+	static Message raw(String text) {
+		return new Message(Frame.RAW, text);
+	}
+
+	/**
+	 * @param sender id of the user that sent the message
+	 * @param user   that sent the message
+	 * @param msg    text of the message
+	 * @return regular chat message
+	 */
+	static Message chat(int sender, String user, String msg) {
+		return new Message(Frame.CHAT, sender, user, 0, null, msg);
+	}
+
+	/**
+	 * @param room     id of the room that the message was sent to
+	 * @param roomName name of the room
+	 * @param sender   id of the user that sent the message
+	 * @param user     that sent the message
+	 * @param msg      text of the message
+	 * @return message to the members of a room
+	 */
+	static Message roomMessage(int room, String roomName, int sender, String user, String msg) {
+		return new Message(Frame.ROOM, sender, user, room, roomName, msg);
+	}
+
+	/**
+	 * @param sender id of the user that sent the message
+	 * @param user   that sent the message
+	 * @param msg    text of the message
+	 * @return private message
+	 */
+	static Message privateMessage(int sender, String user, String msg) {
+		return new Message(Frame.PRIVATE, sender, user, 0, null, msg);
+	}
+
+	/**
+	 * @param msg information
+	 * @return information message
+	 */
+	static Message info(String msg) {
+		return new Message(Frame.INFO, msg);
+	}
+
+	/**
+	 * @param msg description of the error
+	 * @return error message
+	 */
+	static Message error(String msg) {
+		return new Message(Frame.ERROR, msg);
+	}
+
+	/**
+	 * @param fact about penguins
+	 * @return penguin fact
+	 */
+	static Message pingu(String fact) {
+		return new Message(Frame.PINGU, fact);
+	}
+
+	/**
+	 * only for binary clients, they need it to show the name of the sender of later messages
+	 *
+	 * @param id   of a user that is online
+	 * @param user name of the user
+	 * @return entry of the user list
+	 */
+	static Message user(int id, String user) {
+		return new Message(Frame.USER, id, user, 0, null, user);
+	}
+
+	/**
+	 * @param id   of the user that logged in
+	 * @param user name of the user
+	 * @return message that the user joined the chat
+	 */
+	static Message joined(int id, String user) {
+		return new Message(Frame.JOINED, id, user, 0, null, user);
+	}
+
+	/**
+	 * @param id   of the user that logged out
+	 * @param user name of the user
+	 * @return message that the user left the chat
+	 */
+	static Message left(int id, String user) {
+		return new Message(Frame.LEFT, id, user, 0, null, user);
+	}
+
+	/**
+	 * @param room     id of the room the receiver joined
+	 * @param roomName name of the room
+	 * @return message that the receiver is now a member of the room
+	 */
+	static Message roomJoined(int room, String roomName) {
+		return new Message(Frame.ROOM_JOINED, 0, null, room, roomName, roomName);
+	}
+
+	/**
+	 * @param room     id of the room the receiver left
+	 * @param roomName name of the room
+	 * @return message that the receiver is no member of the room anymore
+	 */
+	static Message roomLeft(int room, String roomName) {
+		return new Message(Frame.ROOM_LEFT, 0, null, room, roomName, roomName);
+	}
+
+	/**
+	 * @return formatted text without line separator
+	 */
+	String getText() {
+		String formatted = text;
+		if (formatted == null) {
+			formatted = render(type, user, roomName, payload);
+			text = formatted;
+		}
+		return formatted;
+	}
+
+	/**
+	 * @return name of the sender, null if there is none
+	 */
+	String getUser() {
+		return user;
+	}
+
+	/**
+	 * @return plain text of the message
+	 */
+	String getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return type of the message, one of the constants of Frame
+	 */
+	byte getType() {
+		return type;
+	}
+
+	/**
+	 * @return encoded line including the line separator, must not be modified
+	 */
+	byte[] bytes() {
+		byte[] encoded = line;
+		if (encoded == null) {
+			byte[] formatted = getText().getBytes(StandardCharsets.UTF_8);
+			encoded = new byte[formatted.length + LINE_SEPARATOR.length];
+			System.arraycopy(formatted, 0, encoded, 0, formatted.length);
+			System.arraycopy(LINE_SEPARATOR, 0, encoded, formatted.length, LINE_SEPARATOR.length);
+			line = encoded;
+		}
+		return encoded;
+	}
+
+	/**
+	 * @return size of the message on the wire, estimated from its frame, so it is known without formatting it
+	 */
+	int size() {
+		return frame.length;
+	}
+
+	/**
+	 * @return binary frame of the message, must not be modified
+	 */
+	byte[] frame() {
+		return frame;
+	}
+
+	/**
+	 * @param binary if the receiver speaks the binary protocol
+	 * @return frame or line for the receiver, must not be modified
+	 */
+	byte[] bytes(boolean binary) {
+		return binary ? frame : bytes();
+	}
+
+	/**
+	 * format a message the way it is shown to the user
+	 * the server formats every message at most once for the text clients, binary clients do it themselves
+	 *
+	 * @param type    of the message, one of the constants of Frame
+	 * @param user    name of the sender, if there is one
+	 * @param room    name of the room, if there is one
+	 * @param payload plain text of the message
+	 * @return formatted text
+	 */
+	static String render(byte type, String user, String room, String payload) {
+		return switch (type) {
+			case Frame.CHAT -> messageFormat(user, payload);
+			case Frame.ROOM -> roomMessageFormat(room, user, payload);
+			case Frame.PRIVATE -> privateMessageFormat(user, payload);
+			case Frame.INFO -> infoFormat(payload);
+			case Frame.ERROR -> errorFormat(payload);
+			case Frame.PINGU -> pinguFormat(payload);
+			case Frame.JOINED -> infoFormat(String.format("%s joined the chat!", user));
+			case Frame.LEFT -> infoFormat(String.format("%s has left the chat!", user));
+			case Frame.ROOM_JOINED -> infoFormat(String.format("You joined %s", room));
+			case Frame.ROOM_LEFT -> infoFormat(String.format("You left %s", room));
+			default -> payload;
+		};
+	}
+
+	/**
+	 * string formatter for regular messages
+	 *
+	 * @param user that sent the message
+	 * @param msg
+	 * @return formatted string
+	 */
+	static String messageFormat(String user, String msg) {
+		return String.format("%s%s%s❯ %s", ConsoleColors.YELLOW_BOLD_BRIGHT, user, ConsoleColors.RESET, msg);
+	}
+
+	/**
+	 * string formatter for room messages
+	 *
+	 * @param room
+	 * @param user
+	 * @param msg
+	 * @return formatted string
+	 */
+	static String roomMessageFormat(String room, String user, String msg) {
+		return String.format("%s%s %s%s%s❯ %s", ConsoleColors.CYAN_BOLD, room, ConsoleColors.YELLOW_BOLD_BRIGHT, user, ConsoleColors.RESET, msg);
+	}
+
+	/**
+	 * string formatter for private messages
+	 *
+	 * @param user
+	 * @param msg
+	 * @return formatted string
+	 */
+	static String privateMessageFormat(String user, String msg) {
+		return String.format("%s%s%s❯❯ %s", ConsoleColors.YELLOW_BOLD_BRIGHT, user, ConsoleColors.RESET, msg);
+	}
+
+	/**
+	 * string formatter for information messages
+	 *
+	 * @param msg
+	 * @return formatted string
+	 */
+	static String infoFormat(String msg) {
+		return String.format("%s%s%s", ConsoleColors.WHITE_BOLD, msg, ConsoleColors.RESET);
+	}
+
+	/**
+	 * string formatter for error messages
+	 *
+	 * @param msg
+	 * @return formatted string
+	 */
+	static String errorFormat(String msg) {
+		return String.format("%s⚠ ERROR: %s%s", ConsoleColors.RED_BOLD_BRIGHT, msg, ConsoleColors.RESET);
+	}
+
+	/**
+	 * string formatter for penguin facts
+	 *
+	 * @param fact
+	 * @return formatted string
+	 */
+	static String pinguFormat(String fact) {
+		return String.format("%s%nDid you know: %s%n%n%s", ConsoleColors.BLUE_BACKGROUND, fact, ConsoleColors.RESET);
+	}
+}
@@ -0,0 +1,419 @@
+package pgdp.threads;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * append-only log of all chat messages, split into memory mapped segment files
+ * connections only queue messages, a single writer thread appends them in batches and
+ * forces every batch to disk at once, so the chat never waits for the disk
+ *
+ * a record looks like [int length][long time][short key length][key][text], the length is written
+ * last, so a record that was cut off by a crash has length 0 and marks the end of the log
+ * only segments that still hold one of the last MAX_HISTORY messages of a conversation stay mapped,
+ * older ones stay on disk but are unmapped, so a long running server does not map its whole past
+ *
+ * messages that do not fit into the queue because the disk is too slow are dropped and counted, the chat never blocks,
+ * a journal whose writer failed refuses all further messages instead of queueing them for nobody
+ */
+class MessageJournal {
+	//conversation key of the messages that go to everyone
+	static final String LOBBY = "*";
+	//number of messages per conversation that can be replayed
+	static final int MAX_HISTORY = 100;
+	static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	//messages that may wait for the writer
+	static final int QUEUE_CAPACITY = 64 * 1024;
+	//how long close() waits for room in the queue before it gives up on the writer
+	private static final int CLOSE_TIMEOUT_SECONDS = 10;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int HEADER = Integer.BYTES + Long.BYTES + Short.BYTES;
+
+	private final Path directory;
+	private final int segmentSize;
+	//mapped segments, only those that a history refers to and the active one
+	private final Map<Integer, MappedByteBuffer> segments = new ConcurrentHashMap<>();
+	//number of positions in all histories per segment, only used by the writer thread after the recovery
+	private final Map<Integer, Integer> references = new HashMap<>();
+	private final Map<String, History> index = new ConcurrentHashMap<>();
+	private final BlockingQueue<Entry> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final LongAdder dropped = new LongAdder();
+	private final EventLog log;
+	private final Thread writer;
+	//readers of the segments hold the read lock, close() unmaps them with the write lock
+	private final ReadWriteLock mapping = new ReentrantReadWriteLock();
+	private volatile boolean closed;
+	//set once the writer could not write, nothing is accepted afterwards
+	private volatile boolean failed;
+	//only used by the writer thread after the recovery
+	private MappedByteBuffer active;
+	private int activeId;
+	private long reported;
+
+	public MessageJournal(Path directory, EventLog log) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, log);
+	}
+
+	public MessageJournal(Path directory, int segmentSize, EventLog log) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.log = log;
+		Files.createDirectories(directory);
+		recover();
+
+		this.writer = new Thread(this::write, "journal-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * @param a one user
+	 * @param b other user
+	 * @return conversation key of the private messages between the two users
+	 */
+	static String privateKey(String a, String b) {
+		return a.compareTo(b) < 0 ? "@" + a + "@" + b : "@" + b + "@" + a;
+	}
+
+	/**
+	 * queue a message for the journal, returns right away
+	 *
+	 * @param conversation key, LOBBY, the name of a room or privateKey()
+	 * @param msg          that was sent
+	 * @return if the message was queued, false if the queue is full or the journal failed
+	 */
+	boolean append(String conversation, Message msg) {
+		if (failed || closed) return false;
+		//the writer renders the text, the sender only queues the message it already has
+		if (!pending.offer(new Entry(conversation, System.currentTimeMillis(), msg))) {
+			dropped.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return messages that were dropped because the writer was too far behind
+	 */
+	long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return number of segments that are mapped right now
+	 */
+	int getMappedSegments() {
+		return segments.size();
+	}
+
+	/**
+	 * @return if the writer failed and the journal does not accept messages anymore
+	 */
+	boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * @param conversation key
+	 * @param n            number of messages, at most MAX_HISTORY
+	 * @return the last n messages of the conversation, oldest first
+	 */
+	List<String> history(String conversation, int n) {
+		History history = index.get(conversation);
+		List<String> lines = new ArrayList<>();
+		if (history == null) return lines;
+		mapping.readLock().lock();
+		try {
+			//the segments are unmapped, reading them would crash the JVM
+			if (closed) return lines;
+			for (long position : history.last(n)) {
+				lines.add(read(position));
+			}
+		} finally {
+			mapping.readLock().unlock();
+		}
+		return lines;
+	}
+
+	/**
+	 * write everything that is queued, stop the writer thread and unmap the segments
+	 */
+	void close() {
+		try {
+			//a writer that failed does not take anything anymore, one that stopped taking is not waited for
+			if (failed || pending.offer(Entry.END, CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mapping.writeLock().lock();
+		try {
+			if (closed) return;
+			closed = true;
+			//a writer that is still running may be writing to the active segment, unmapping it would crash the JVM
+			if (writer.isAlive()) {
+				log.log(EventLog.JOURNAL, null, null, "the writer does not stop, the segments are left to the garbage collector");
+				return;
+			}
+			for (MappedByteBuffer segment : segments.values()) {
+				unmap(segment);
+			}
+			segments.clear();
+			active = null;
+		} finally {
+			mapping.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * helper method that unmaps a segment right away instead of whenever the garbage collector finds it
+	 * Java 17 has no public way to do that, the cleaner of sun.misc.Unsafe is the one the JDK itself offers
+	 */
+	private static void unmap(MappedByteBuffer segment) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), segment);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			//unmapped by the garbage collector instead
+		}
+	}
+
+	/**
+	 * helper method that maps all existing segments and rebuilds the index from them
+	 * only the headers and keys are read, the texts are skipped
+	 */
+	private void recover() throws IOException {
+		List<Integer> ids;
+		try (Stream<Path> files = Files.list(directory)) {
+			ids = files.map(file -> file.getFileName().toString())
+					.filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+					.map(this::segmentId)
+					.filter(id -> id >= 0)
+					.sorted()
+					.toList();
+		}
+		if (ids.isEmpty()) {
+			openSegment(0);
+			return;
+		}
+
+		for (int id : ids) {
+			MappedByteBuffer segment = openSegment(id);
+			int offset = 0;
+			while (offset + HEADER <= segment.limit()) {
+				int length = segment.getInt(offset);
+				if (length <= 0 || offset + Integer.BYTES + length > segment.limit()) break;
+				short keyLength = segment.getShort(offset + Integer.BYTES + Long.BYTES);
+				byte[] key = new byte[keyLength];
+				segment.get(offset + HEADER, key);
+				indexed(new String(key, StandardCharsets.UTF_8), position(id, offset));
+				offset += Integer.BYTES + length;
+			}
+			segment.position(offset);
+		}
+	}
+
+	/**
+	 * @param name of a file that looks like a segment
+	 * @return number of the segment, -1 if the file only looks like one and is ignored
+	 */
+	private int segmentId(String name) {
+		String number = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+		try {
+			int id = Integer.parseInt(number);
+			if (id >= 0) return id;
+		} catch (NumberFormatException e) {
+			//not written by the journal
+		}
+		log.log(EventLog.JOURNAL, null, null, "ignoring " + directory.resolve(name) + ", it is no segment");
+		return -1;
+	}
+
+	/**
+	 * helper method that maps a segment file, creating it if it does not exist
+	 * the last mapped segment is the one new records are appended to, the one before is unmapped if no history needs it
+	 */
+	private MappedByteBuffer openSegment(int id) throws IOException {
+		Path file = directory.resolve(String.format("%s%09d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			//the mapping stays valid after the channel is closed
+			MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, channel.size()));
+			segments.put(id, segment);
+			int previous = activeId;
+			active = segment;
+			activeId = id;
+			releaseIfUnused(previous);
+			return segment;
+		}
+	}
+
+	/**
+	 * helper method that adds a record to the history of its conversation
+	 * the record it pushes out of the history may have been the last one that kept its segment mapped
+	 */
+	private void indexed(String conversation, long position) {
+		references.merge(segmentOf(position), 1, Integer::sum);
+		long evicted = historyOf(conversation).add(position);
+		if (evicted < 0) return;
+		int segment = segmentOf(evicted);
+		references.merge(segment, -1, (count, change) -> count + change == 0 ? null : count + change);
+		releaseIfUnused(segment);
+	}
+
+	/**
+	 * helper method that unmaps a segment that is neither active nor referred to by any history
+	 * waits for the readers, which hold the read lock while they read a segment
+	 */
+	private void releaseIfUnused(int id) {
+		if (id == activeId || references.containsKey(id)) return;
+		mapping.writeLock().lock();
+		try {
+			MappedByteBuffer segment = segments.remove(id);
+			if (segment != null) unmap(segment);
+		} finally {
+			mapping.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * writer thread, appends queued messages in batches and forces each batch to disk once
+	 */
+	private void write() {
+		List<Entry> batch = new ArrayList<>();
+		try {
+			while (true) {
+				batch.add(pending.take());
+				pending.drainTo(batch);
+				boolean end = false;
+				for (Entry entry : batch) {
+					if (entry == Entry.END) {
+						end = true;
+					} else {
+						writeRecord(entry);
+					}
+				}
+				active.force();
+				batch.clear();
+				long lost = dropped.sum();
+				if (lost > reported) {
+					log.log(EventLog.JOURNAL, null, null, "the disk is too slow, " + (lost - reported) + " messages were not journaled");
+					reported = lost;
+				}
+				if (end) return;
+			}
+		} catch (InterruptedException e) {
+			//stop writing, like a failure nothing is taken from the queue anymore
+			failed = true;
+			pending.clear();
+		} catch (IOException | RuntimeException e) {
+			//a full disk or a segment that cannot be mapped, nothing written from now on would be complete
+			failed = true;
+			pending.clear();
+			log.error(null, null, "journal failed, messages are not persisted anymore", e);
+		}
+	}
+
+	/**
+	 * helper method that appends one record to the active segment, starting a new segment if it is full
+	 */
+	private void writeRecord(Entry entry) throws IOException {
+		byte[] key = entry.conversation().getBytes(StandardCharsets.UTF_8);
+		byte[] text = entry.msg().getText().getBytes(StandardCharsets.UTF_8);
+		int length = Long.BYTES + Short.BYTES + key.length + text.length;
+		if (Integer.BYTES + length > segmentSize || key.length > Short.MAX_VALUE) return;
+		if (active.remaining() < Integer.BYTES + length) {
+			active.force();
+			openSegment(activeId + 1);
+		}
+
+		int offset = active.position();
+		active.position(offset + Integer.BYTES);
+		active.putLong(entry.time());
+		active.putShort((short) key.length);
+		active.put(key);
+		active.put(text);
+		//publish the record by writing its length last
+		active.putInt(offset, length);
+		indexed(entry.conversation(), position(activeId, offset));
+	}
+
+	/**
+	 * helper method that reads the text of a record, only uses absolute reads so many threads can read at once
+	 */
+	private String read(long position) {
+		MappedByteBuffer segment = segments.get(segmentOf(position));
+		int offset = (int) position;
+		int length = segment.getInt(offset);
+		short keyLength = segment.getShort(offset + Integer.BYTES + Long.BYTES);
+		byte[] text = new byte[length - Long.BYTES - Short.BYTES - keyLength];
+		segment.get(offset + HEADER + keyLength, text);
+		return new String(text, StandardCharsets.UTF_8);
+	}
+
+	private History historyOf(String conversation) {
+		return index.computeIfAbsent(conversation, key -> new History());
+	}
+
+	private static long position(int segment, int offset) {
+		return ((long) segment << 32) | offset;
+	}
+
+	private static int segmentOf(long position) {
+		return (int) (position >>> 32);
+	}
+
+	private record Entry(String conversation, long time, Message msg) {
+		static final Entry END = new Entry("", 0, null);
+	}
+
+	/**
+	 * positions of the last messages of one conversation
+	 */
+	private static class History {
+		private final long[] positions = new long[MAX_HISTORY];
+		private int count;
+		private int next;
+
+		/**
+		 * @return position that was pushed out of the history, -1 if it was not full yet
+		 */
+		synchronized long add(long position) {
+			long evicted = count == positions.length ? positions[next] : -1;
+			positions[next] = position;
+			next = (next + 1) % positions.length;
+			count = Math.min(count + 1, positions.length);
+			return evicted;
+		}
+
+		synchronized long[] last(int n) {
+			n = Math.max(0, Math.min(n, count));
+			long[] result = new long[n];
+			for (int i = 0; i < n; i++) {
+				result[i] = positions[Math.floorMod(next - n + i, positions.length)];
+			}
+			return result;
+		}
+	}
+}
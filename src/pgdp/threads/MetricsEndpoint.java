@@ -0,0 +1,119 @@
+package pgdp.threads;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * local http endpoint that shows the metrics of a server in the Prometheus text format
+ * only listens on the loopback address, GET http://localhost:port/metrics
+ */
+class MetricsEndpoint {
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private final ServerMetrics metrics;
+	private final HttpServer http;
+
+	/**
+	 * @param metrics to be shown
+	 * @param port    to listen on
+	 */
+	public MetricsEndpoint(ServerMetrics metrics, int port) throws IOException {
+		this.metrics = metrics;
+		this.http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.http.createContext("/metrics", this::handle);
+		this.http.start();
+	}
+
+	/**
+	 * @return port the endpoint listens on
+	 */
+	int getPort() {
+		return http.getAddress().getPort();
+	}
+
+	void stop() {
+		http.stop(0);
+	}
+
+	/**
+	 * helper method that answers one request, runs on the thread of the http server
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = format(metrics).getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		}
+	}
+
+	/**
+	 * @param metrics to be shown
+	 * @return all metrics in the Prometheus text format
+	 */
+	static String format(ServerMetrics metrics) {
+		StringBuilder builder = new StringBuilder();
+		gauge(builder, "chat_connections_active", "Connections that are open", metrics.getActiveConnections());
+		counter(builder, "chat_connections_opened_total", "Connections that were accepted", metrics.getConnectionsOpened());
+		counter(builder, "chat_connections_rejected_total", "Connections that were turned away because the server was full", metrics.getConnectionsRejected());
+		counter(builder, "chat_handshakes_total", "Users that logged in", metrics.getHandshakes());
+		counter(builder, "chat_messages_in_total", "Lines received from clients", metrics.getMessagesIn());
+		counter(builder, "chat_messages_out_total", "Messages written to clients", metrics.getMessagesWritten());
+		counter(builder, "chat_writes_total", "Writes to client sockets", metrics.getWrites());
+		counter(builder, "chat_bytes_written_total", "Bytes written to clients", metrics.getBytesWritten());
+		gauge(builder, "chat_queued_messages", "Messages waiting in all outbound queues", metrics.getQueuedMessages());
+		gauge(builder, "chat_queue_depth_max", "Deepest any outbound queue has been", metrics.getMaxQueueDepth());
+		counter(builder, "chat_dropped_messages_total", "Messages dropped because a client was too slow", metrics.getDroppedMessages());
+		counter(builder, "chat_slow_consumers_total", "Clients disconnected because they were too slow", metrics.getSlowConsumers());
+		counter(builder, "chat_compression_input_bytes_total", "Bytes of the frames that were compressed", metrics.getBytesBeforeCompression());
+		counter(builder, "chat_compression_output_bytes_total", "Bytes of the compressed frames sent instead", metrics.getBytesAfterCompression());
+		counter(builder, "chat_throttled_session_total", "Lines dropped because a session sent faster than its limit", metrics.getThrottledBySession());
+		counter(builder, "chat_throttled_address_total", "Lines dropped because an address sent faster than its limit", metrics.getThrottledByAddress());
+		counter(builder, "chat_idle_disconnects_total", "Connections closed because the client was silent for too long", metrics.getIdleDisconnects());
+		summary(builder, "chat_broadcast_fanout", "Receivers of every message to everyone or to a room", metrics.getFanOut(), 1);
+		summary(builder, "chat_handling_seconds", "Time the server needed for a line from a client", metrics.getHandlingLatency(), 1e-9);
+		return builder.toString();
+	}
+
+	private static void counter(StringBuilder builder, String name, String help, long value) {
+		header(builder, name, help, "counter");
+		builder.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder builder, String name, String help, long value) {
+		header(builder, name, help, "gauge");
+		builder.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * helper method that writes a histogram as a summary with quantiles
+	 *
+	 * @param scale that the recorded values are multiplied with, for example to turn nanoseconds into seconds
+	 */
+	private static void summary(StringBuilder builder, String name, String help, Histogram histogram, double scale) {
+		header(builder, name, help, "summary");
+		for (double quantile : QUANTILES) {
+			builder.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+					.append(histogram.getValueAtPercentile(quantile * 100) * scale).append('\n');
+		}
+		builder.append(name).append("_sum ").append(histogram.getSum() * scale).append('\n');
+		builder.append(name).append("_count ").append(histogram.getCount()).append('\n');
+	}
+
+	private static void header(StringBuilder builder, String name, String help, String type) {
+		builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+}
@@ -0,0 +1,255 @@
+package pgdp.threads;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * finds how many sessions every execution mode of the server sustains
+ * the server runs alone in a fresh JVM with a fixed heap, this JVM opens idle sessions against it in steps
+ * and after every step logs in a probe user that sends itself a message, a mode is done once a session is not
+ * admitted anymore or the probe takes longer than the latency limit, the last step before that is its maximum
+ *
+ * java -cp target/classes pgdp.threads.ModeComparison step=1000 max=15000 latency=200 heap=256m
+ * every session costs this JVM a file descriptor as well, so max is bounded by ulimit -n
+ */
+public class ModeComparison {
+	static final int DEFAULT_STEP = 1000;
+	static final int DEFAULT_MAX = 15_000;
+	static final int DEFAULT_LATENCY_MILLIS = 200;
+	static final String DEFAULT_HEAP = "256m";
+	//probes per step, the slowest one counts
+	private static final int PROBES = 3;
+	private static final int TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * what one mode sustained
+	 *
+	 * @param sessions    most sessions that were admitted with a probe below the latency limit
+	 * @param latency     slowest probe at that number of sessions, in milliseconds
+	 * @param rss         memory of the server process per session, in bytes
+	 * @param heap        used heap of the server per session, in bytes
+	 * @param threads     threads of the server process at that number of sessions
+	 * @param stoppedBy   why the next step failed
+	 */
+	record Result(int sessions, long latency, double rss, double heap, int threads, String stoppedBy) {
+	}
+
+	/**
+	 * run the comparison
+	 *
+	 * @param args settings step=1000, max=15000, latency=200 (ms), heap=256m and mode=name to only measure one mode,
+	 *             or serve and a mode, which is how the server JVM is started
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2 && args[0].equals("serve")) {
+			serve(ServerConfig.Mode.valueOf(args[1].toUpperCase()));
+			return;
+		}
+
+		int step = DEFAULT_STEP;
+		int max = DEFAULT_MAX;
+		int latency = DEFAULT_LATENCY_MILLIS;
+		String heap = DEFAULT_HEAP;
+		List<ServerConfig.Mode> modes = new ArrayList<>(List.of(ServerConfig.Mode.values()));
+		for (String arg : args) {
+			int separation = arg.indexOf('=');
+			if (separation <= 0)
+				throw new IllegalArgumentException("setting must look like key=value: " + arg);
+			String value = arg.substring(separation + 1).strip();
+			try {
+				switch (arg.substring(0, separation).strip()) {
+					case "step" -> step = Integer.parseInt(value);
+					case "max" -> max = Integer.parseInt(value);
+					case "latency" -> latency = Integer.parseInt(value);
+					case "heap" -> heap = value;
+					case "mode" -> modes = List.of(ServerConfig.Mode.valueOf(value.toUpperCase()));
+					default -> throw new IllegalArgumentException("unknown setting: " + arg);
+				}
+			} catch (NumberFormatException exc) {
+				throw new IllegalArgumentException("number invalid: " + arg);
+			}
+		}
+		if (step <= 0 || max < step || latency <= 0)
+			throw new IllegalArgumentException("step and latency must be positive and max at least one step");
+
+		System.out.printf("Java %s (%s), server heap %s, steps of %d up to %d sessions, latency limit %d ms%n",
+				Runtime.version(), System.getProperty("java.vendor"), heap, step, max, latency);
+		System.out.printf("%-9s %10s %10s %14s %14s %9s  %s%n", "mode", "sessions", "latency", "rss/session", "heap/session", "threads", "stopped by");
+		for (ServerConfig.Mode mode : modes) {
+			if (mode == ServerConfig.Mode.VIRTUAL && !ChatServer.virtualThreadsSupported()) {
+				System.out.printf("%-9s not measured, needs Java 21%n", mode.name().toLowerCase());
+				continue;
+			}
+			Result result = ramp(mode, step, max, latency, heap);
+			System.out.printf("%-9s %10d %7d ms %11.1f KB %11.1f KB %9d  %s%n", mode.name().toLowerCase(), result.sessions(),
+					result.latency(), result.rss() / 1024, result.heap() / 1024, result.threads(), result.stoppedBy());
+		}
+	}
+
+	/**
+	 * start a server of one mode in a fresh JVM and add sessions until it fails
+	 *
+	 * @param mode    of the server
+	 * @param step    sessions that are added before every probe
+	 * @param max     sessions after which the ramp stops even if the server keeps up
+	 * @param latency limit for the probe in milliseconds
+	 * @param heap    maximum heap of the server JVM
+	 * @return the last step the server sustained
+	 */
+	static Result ramp(ServerConfig.Mode mode, int step, int max, int latency, String heap) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(
+				Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+				"-Xmx" + heap, "-Xss1m", "-cp", System.getProperty("java.class.path"),
+				ModeComparison.class.getName(), "serve", mode.name())
+				.redirectErrorStream(true)
+				.start();
+		BufferedReader control = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		PrintWriter commands = new PrintWriter(process.getOutputStream(), true);
+		List<Socket> sockets = new ArrayList<>();
+		try {
+			int port = Integer.parseInt(answer(control, "PORT"));
+			long[] idle = stats(control, commands);
+			Result sustained = new Result(0, 0, 0, 0, (int) idle[2], "");
+			String stoppedBy = "nothing, max reached";
+			ramp:
+			while (sockets.size() < max) {
+				int target = Math.min(max, sockets.size() + step);
+				//idle sessions wait at the username prompt, like users that just opened the chat
+				while (sockets.size() < target) {
+					String admitted;
+					try {
+						Socket socket = new Socket("localhost", port);
+						sockets.add(socket);
+						socket.setSoTimeout(TIMEOUT_MILLIS);
+						admitted = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+					} catch (IOException e) {
+						admitted = e.toString();
+					}
+					if (!"ENTER_USERNAME".equals(admitted)) {
+						stoppedBy = "session " + sockets.size() + " not admitted: " + admitted;
+						break ramp;
+					}
+				}
+				long slowest = 0;
+				for (int i = 0; i < PROBES; i++) {
+					slowest = Math.max(slowest, probe(port, "probe" + sockets.size() + "x" + i));
+				}
+				if (slowest > latency) {
+					stoppedBy = slowest == Long.MAX_VALUE ? "probe failed at " + sockets.size() + " sessions"
+							: String.format("probe took %d ms at %d sessions", slowest, sockets.size());
+					break;
+				}
+				long[] used = stats(control, commands);
+				int sessions = sockets.size();
+				sustained = new Result(sessions, slowest, (double) (used[0] - idle[0]) / sessions,
+						(double) (used[1] - idle[1]) / sessions, (int) used[2], "");
+			}
+			return new Result(sustained.sessions(), sustained.latency(), sustained.rss(), sustained.heap(), sustained.threads(), stoppedBy);
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+			process.destroy();
+			if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly();
+		}
+	}
+
+	/**
+	 * helper method that logs in a fresh user, which sends itself a private message
+	 *
+	 * @return milliseconds from connecting until the message came back, Long.MAX_VALUE if it did not
+	 */
+	private static long probe(int port, String username) {
+		long start = System.nanoTime();
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.setSoTimeout(TIMEOUT_MILLIS);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			if (!"ENTER_USERNAME".equals(in.readLine())) return Long.MAX_VALUE;
+			out.println(username);
+			if (!"VALID".equals(in.readLine())) return Long.MAX_VALUE;
+			out.println("@" + username + " ping");
+			String line;
+			do {
+				line = in.readLine();
+			} while (line != null && !line.contains("ping"));
+			if (line == null) return Long.MAX_VALUE;
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		} catch (IOException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * helper method that asks the server JVM for its memory and threads
+	 *
+	 * @return resident set size and used heap in bytes and the number of threads
+	 */
+	private static long[] stats(BufferedReader control, PrintWriter commands) throws IOException {
+		commands.println("STATS");
+		String[] values = answer(control, "STATS").split(" ");
+		return new long[]{Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2])};
+	}
+
+	/**
+	 * helper method that skips the output of the server until the line with the prefix
+	 *
+	 * @return the rest of the line
+	 */
+	private static String answer(BufferedReader control, String prefix) throws IOException {
+		String line;
+		while ((line = control.readLine()) != null) {
+			if (line.startsWith(prefix + " ")) return line.substring(prefix.length() + 1);
+		}
+		throw new IOException("server JVM exited");
+	}
+
+	/**
+	 * server JVM, starts a server on a free port and answers STATS with its memory and threads until stdin ends
+	 *
+	 * @param mode of the server
+	 */
+	private static void serve(ServerConfig.Mode mode) throws IOException {
+		ChatServer server = ChatServer.start("0", new ServerConfig().mode(mode).maxConnections(Integer.MAX_VALUE));
+		System.out.println("PORT " + server.getPort());
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		while (in.readLine() != null) {
+			System.out.printf("STATS %d %d %d%n", residentSetSize(), usedHeap(), ManagementFactory.getThreadMXBean().getThreadCount());
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * @return used heap after a garbage collection in bytes
+	 */
+	private static long usedHeap() {
+		System.gc();
+		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+	}
+
+	/**
+	 * @return memory of the process in bytes, 0 if it cannot be read on this system
+	 */
+	private static long residentSetSize() {
+		try {
+			for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			//not on linux
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,179 @@
+package pgdp.threads;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * bounded queue of messages that still have to be written to one client
+ * any thread may add messages, only the writer of the connection takes them
+ */
+class OutboundQueue {
+	private final ArrayDeque<Message> messages = new ArrayDeque<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final int capacity;
+	private final ServerConfig.OverflowPolicy policy;
+	private final ServerMetrics metrics;
+	private boolean closed;
+	private boolean finishing;
+	//only changed while holding the lock, but read without it
+	private volatile long bytes;
+
+	public OutboundQueue(int capacity, ServerConfig.OverflowPolicy policy, ServerMetrics metrics) {
+		this.capacity = capacity;
+		this.policy = policy;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * add a message, applies the overflow policy if the queue is full
+	 *
+	 * @param msg to be sent
+	 * @return false if the client is too slow and has to be disconnected
+	 */
+	boolean offer(Message msg) {
+		lock.lock();
+		try {
+			if (closed || finishing) return true;
+			if (messages.size() >= capacity) {
+				switch (policy) {
+					case DROP_OLDEST -> {
+						bytes -= messages.poll().size();
+						metrics.messageDropped(1);
+					}
+					case COALESCE -> {
+						int skipped = messages.size();
+						messages.clear();
+						Message note = Message.error(String.format("Your connection is too slow, %d messages were skipped", skipped));
+						messages.add(note);
+						bytes = note.size();
+						metrics.messageDropped(skipped);
+						//the note and the new message replace the skipped ones
+						metrics.queueDepthChanged(2 - skipped);
+					}
+					case DISCONNECT -> {
+						metrics.slowConsumerDisconnected();
+						return false;
+					}
+				}
+			} else {
+				metrics.queueDepthChanged(1);
+			}
+			messages.add(msg);
+			bytes += msg.size();
+			metrics.queueDepthObserved(messages.size());
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return next message, or null if the queue is empty
+	 */
+	Message poll() {
+		lock.lock();
+		try {
+			Message msg = messages.poll();
+			if (msg != null) taken(msg);
+			return msg;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * wait for the next message
+	 *
+	 * @param timeout  how long to wait at most
+	 * @param unit     of the timeout
+	 * @return next message, or null if the queue was closed, is finished or the timeout elapsed
+	 */
+	Message take(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (messages.isEmpty()) {
+				if (closed || finishing || nanos <= 0) return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			Message msg = messages.poll();
+			taken(msg);
+			return msg;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of queued messages
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return messages.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return estimated number of queued bytes, see Message.size(), may be slightly outdated
+	 */
+	long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * accept no more messages, the writer gets the queued ones and then null
+	 */
+	void finish() {
+		lock.lock();
+		try {
+			finishing = true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return if finish() was called and all queued messages were taken
+	 */
+	boolean isFinished() {
+		lock.lock();
+		try {
+			return finishing && messages.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * forget all queued messages and wake up the writer, later messages are ignored
+	 */
+	void close() {
+		lock.lock();
+		try {
+			if (closed) return;
+			closed = true;
+			metrics.queueDepthChanged(-messages.size());
+			messages.clear();
+			bytes = 0;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * helper method that updates the counters after a message was taken, must hold the lock
+	 */
+	private void taken(Message msg) {
+		bytes -= msg.size();
+		metrics.queueDepthChanged(-1);
+	}
+}
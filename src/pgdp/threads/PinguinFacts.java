@@ -1,13 +1,14 @@
 package pgdp.threads;
 
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class PinguinFacts {
 	/**
 	 * SOURCE: https://www.factretriever.com/penguin-facts
+	 * only loaded with the first PENGU, nothing refers to this class while the server starts
 	 */
-	private static List<String> facts = Arrays.asList(
+	private static final List<String> facts = List.of(
 			"Penguins are one of about 40 species of flightless birds.",
 			"Most scientists agree that there are 17 species of penguins. Of the 17 species, 13 are either threatened or endangered, with some on the brink of extinction.",
 			"Generally, penguins are not sexually dimorphic, meaning male and female penguins look alike.",
@@ -33,6 +34,6 @@ public class PinguinFacts {
 	}
 
 	private static int randomIndex() {
-		return (int) (Math.random() * facts.size());
+		return ThreadLocalRandom.current().nextInt(facts.size());
 	}
 }
@@ -0,0 +1,74 @@
+package pgdp.threads;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * rate limits of one server, one token bucket per session and one shared by all sessions of an address
+ * the bucket of an address lives as long as a session from that address does, so the map cannot grow without bound
+ */
+class RateLimiter {
+	private final int sessionRate;
+	private final int sessionBurst;
+	private final int addressRate;
+	private final int addressBurst;
+	private final ConcurrentHashMap<InetAddress, Shared> addresses = new ConcurrentHashMap<>();
+
+	/**
+	 * bucket of an address and the number of sessions using it, only changed inside compute
+	 */
+	private static class Shared {
+		final TokenBucket bucket;
+		int sessions;
+
+		Shared(TokenBucket bucket) {
+			this.bucket = bucket;
+		}
+	}
+
+	/**
+	 * @param config with the rates and bursts, a rate of 0 turns that limit off
+	 */
+	public RateLimiter(ServerConfig config) {
+		this.sessionRate = config.getMessageRate();
+		this.sessionBurst = config.getMessageBurst();
+		this.addressRate = config.getAddressRate();
+		this.addressBurst = config.getAddressBurst();
+	}
+
+	/**
+	 * @return new bucket for one session, null if sessions are not limited
+	 */
+	TokenBucket sessionBucket() {
+		return sessionRate > 0 ? new TokenBucket(sessionRate, sessionBurst) : null;
+	}
+
+	/**
+	 * get the bucket of an address for one more session, release it once the session is closed
+	 *
+	 * @param address of the client
+	 * @return bucket shared by all sessions of the address, null if addresses are not limited
+	 */
+	TokenBucket acquire(InetAddress address) {
+		if (addressRate == 0 || address == null) return null;
+		return addresses.compute(address, (key, shared) -> {
+			if (shared == null) shared = new Shared(new TokenBucket(addressRate, addressBurst));
+			shared.sessions++;
+			return shared;
+		}).bucket;
+	}
+
+	/**
+	 * @param address of a client that acquired its bucket
+	 */
+	void release(InetAddress address) {
+		addresses.computeIfPresent(address, (key, shared) -> --shared.sessions == 0 ? null : shared);
+	}
+
+	/**
+	 * @return number of addresses that have a bucket
+	 */
+	int addresses() {
+		return addresses.size();
+	}
+}
@@ -0,0 +1,117 @@
+package pgdp.threads;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * one record on the link between two nodes of a cluster
+ * a record looks like [byte type][string first][string second][string third],
+ * every string is [int length][utf-8 bytes] and a length of -1 stands for null
+ *
+ * @param type   of the record, one of the constants
+ * @param first  depends on the type
+ * @param second depends on the type
+ * @param third  depends on the type
+ */
+record Relay(byte type, String first, String second, String third) {
+	//answer to the challenge, first is the name of the node, second the proof that it knows the secret
+	static final byte HELLO = 0;
+	//user logged in on the sending node, first is the name, second the login time in milliseconds
+	static final byte USER_UP = 1;
+	//user logged out, first is the name
+	static final byte USER_DOWN = 2;
+	//message to everyone, first is the sender, second the text
+	static final byte CHAT = 3;
+	//message to a room, first is the room, second the sender, third the text
+	static final byte ROOM = 4;
+	//information for the members of a room, first is the room, second the text
+	static final byte ROOM_INFO = 5;
+	//private message, first is the sender, second the receiver, third the text
+	static final byte PRIVATE = 6;
+	//first record in both directions, first is a random nonce the other node has to prove the secret with
+	static final byte CHALLENGE = 7;
+
+	//strings longer than this are refused, nothing a node sends comes close
+	static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+	static Relay challenge(String nonce) {
+		return new Relay(CHALLENGE, nonce, null, null);
+	}
+
+	static Relay hello(String node, String proof) {
+		return new Relay(HELLO, node, proof, null);
+	}
+
+	static Relay userUp(String user, long since) {
+		return new Relay(USER_UP, user, Long.toString(since), null);
+	}
+
+	static Relay userDown(String user) {
+		return new Relay(USER_DOWN, user, null, null);
+	}
+
+	static Relay chat(String user, String msg) {
+		return new Relay(CHAT, user, msg, null);
+	}
+
+	static Relay room(String room, String user, String msg) {
+		return new Relay(ROOM, room, user, msg);
+	}
+
+	static Relay roomInfo(String room, String msg) {
+		return new Relay(ROOM_INFO, room, msg, null);
+	}
+
+	static Relay privateMessage(String user, String receiver, String msg) {
+		return new Relay(PRIVATE, user, receiver, msg);
+	}
+
+	/**
+	 * @param out stream of the link, flushed by the caller once a whole batch is written
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeByte(type);
+		writeString(out, first);
+		writeString(out, second);
+		writeString(out, third);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * read the next record
+	 *
+	 * @param in stream of records
+	 * @return the record, null if the stream ended before it
+	 */
+	static Relay read(DataInputStream in) throws IOException {
+		byte type;
+		try {
+			type = in.readByte();
+		} catch (EOFException e) {
+			return null;
+		}
+		return new Relay(type, readString(in), readString(in), readString(in));
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1) return null;
+		if (length < 0 || length > MAX_LENGTH)
+			throw new IOException("invalid string length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
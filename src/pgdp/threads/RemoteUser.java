@@ -0,0 +1,50 @@
+package pgdp.threads;
+
+import java.net.InetAddress;
+import java.util.Date;
+
+/**
+ * user that is connected to another node of the cluster
+ * it is registered like a local user, so it has an id, shows up in WHOIS and its name cannot be taken,
+ * but only private messages are handed on to its node, everything else reaches it through the relay of the sender
+ */
+class RemoteUser extends Connection {
+	private final ClusterLink link;
+
+	/**
+	 * @param server         this node
+	 * @param link           to the node of the user
+	 * @param username       of the user
+	 * @param connectedSince when the user logged in on its node
+	 */
+	public RemoteUser(ChatServer server, ClusterLink link, String username, Date connectedSince) {
+		super(server, username, connectedSince);
+		this.link = link;
+	}
+
+	/**
+	 * @return name of the node the user is connected to
+	 */
+	String getNode() {
+		return link.getPeer();
+	}
+
+	@Override
+	void send(Message msg) {
+		if (msg.getType() == Frame.PRIVATE) {
+			link.send(Relay.privateMessage(msg.getUser(), getUsername(), msg.getPayload()));
+		}
+	}
+
+	/**
+	 * only the node of the user can close its connection
+	 */
+	@Override
+	void close() {
+	}
+
+	@Override
+	InetAddress getInetAddress() {
+		return link.getInetAddress();
+	}
+}
@@ -0,0 +1,93 @@
+package pgdp.threads;
+
+import java.util.Arrays;
+
+/**
+ * chat room that users can join with JOIN #name
+ * messages to the room only go to its members instead of everyone on the server
+ *
+ * the members are a sorted array of user ids that is copied on every change, joining and leaving
+ * are rare compared to messages, which only walk the array without any locks
+ */
+class Room {
+	private static final int[] EMPTY = new int[0];
+
+	private final int id;
+	private final String name;
+	//only replaced while RoomRegistry holds the lock of this room
+	private volatile int[] members = EMPTY;
+	private final HistoryRing recent;
+
+	/**
+	 * @param id       of the room, used by the binary protocol
+	 * @param name     of the room
+	 * @param backfill number of recent messages that are kept for new members, 0 for none
+	 */
+	public Room(int id, String name, int backfill) {
+		this.id = id;
+		this.name = name;
+		this.recent = backfill > 0 ? new HistoryRing(backfill) : null;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @param user id of the user that joins
+	 * @return if the user was not a member before
+	 */
+	boolean join(int user) {
+		int[] current = members;
+		int index = Arrays.binarySearch(current, user);
+		if (index >= 0) return false;
+		int insert = -index - 1;
+		int[] joined = new int[current.length + 1];
+		System.arraycopy(current, 0, joined, 0, insert);
+		joined[insert] = user;
+		System.arraycopy(current, insert, joined, insert + 1, current.length - insert);
+		members = joined;
+		return true;
+	}
+
+	/**
+	 * @param user id of the user that leaves
+	 * @return if the user was a member
+	 */
+	boolean part(int user) {
+		int[] current = members;
+		int index = Arrays.binarySearch(current, user);
+		if (index < 0) return false;
+		int[] parted = new int[current.length - 1];
+		System.arraycopy(current, 0, parted, 0, index);
+		System.arraycopy(current, index + 1, parted, index, current.length - index - 1);
+		members = parted;
+		return true;
+	}
+
+	boolean isMember(int user) {
+		return Arrays.binarySearch(members, user) >= 0;
+	}
+
+	boolean isEmpty() {
+		return members.length == 0;
+	}
+
+	/**
+	 * @return recent messages of the room, null if none are kept
+	 */
+	HistoryRing recent() {
+		return recent;
+	}
+
+	/**
+	 * @return ids of the members, sorted, must not be modified, safe to iterate while others join or leave
+	 */
+	int[] members() {
+		return members;
+	}
+}
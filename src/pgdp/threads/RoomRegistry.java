@@ -0,0 +1,80 @@
+package pgdp.threads;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * all rooms of one server, a room exists as long as it has members
+ */
+class RoomRegistry {
+	private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+	private final int backfill;
+	private final AtomicInteger lastId = new AtomicInteger();
+
+	/**
+	 * @param backfill number of recent messages every room keeps for new members
+	 */
+	public RoomRegistry(int backfill) {
+		this.backfill = backfill;
+	}
+
+	/**
+	 * check if a room name is valid
+	 * has to start with #, cannot be blank or contain spaces
+	 *
+	 * @param name of the room
+	 * @return if the name can be used
+	 */
+	static boolean isValidName(String name) {
+		return name.length() > 1 && name.charAt(0) == '#' && !name.substring(1).isBlank() && !name.contains(" ");
+	}
+
+	/**
+	 * @param name of the room
+	 * @return the room, null if nobody is in it
+	 */
+	Room get(String name) {
+		return rooms.get(name);
+	}
+
+	/**
+	 * join a room, creating it if it does not exist yet
+	 *
+	 * @param name       of the room
+	 * @param connection that joins
+	 * @return the room, null if the connection already was a member
+	 */
+	Room join(String name, Connection connection) {
+		Room[] joined = new Room[1];
+		//compute runs atomically, so a room cannot be removed while someone joins it
+		rooms.compute(name, (key, room) -> {
+			if (room == null) room = new Room(lastId.incrementAndGet(), key, backfill);
+			if (room.join(connection.getId())) joined[0] = room;
+			return room;
+		});
+		return joined[0];
+	}
+
+	/**
+	 * leave a room, removing it once it is empty
+	 *
+	 * @param name       of the room
+	 * @param connection that leaves
+	 * @return the room, null if the connection was not a member
+	 */
+	Room part(String name, Connection connection) {
+		Room[] parted = new Room[1];
+		rooms.computeIfPresent(name, (key, room) -> {
+			if (room.part(connection.getId())) parted[0] = room;
+			return room.isEmpty() ? null : room;
+		});
+		return parted[0];
+	}
+
+	/**
+	 * @return number of rooms
+	 */
+	int size() {
+		return rooms.size();
+	}
+}
@@ -0,0 +1,470 @@
+package pgdp.threads;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * settings of a chat server
+ * every setting has a default and can be changed with the chained setters
+ */
+public class ServerConfig {
+	/**
+	 * how the server handles its connections
+	 */
+	public enum Mode {
+		//one blocking platform thread per connection
+		PLATFORM,
+		//one blocking virtual thread per connection
+		VIRTUAL,
+		//a few event loops serve all connections without blocking
+		NIO
+	}
+
+	/**
+	 * what happens if a client does not read fast enough and its queue is full
+	 */
+	public enum OverflowPolicy {
+		//forget the oldest queued message
+		DROP_OLDEST,
+		//replace everything queued by a single note how many messages were skipped
+		COALESCE,
+		//disconnect the client
+		DISCONNECT
+	}
+
+	private Mode mode = Mode.PLATFORM;
+	private int eventLoops = Math.min(4, Runtime.getRuntime().availableProcessors());
+	private int maxConnections = 50;
+	private int queueCapacity = 1024;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+	private int flushThreshold = 8 * 1024;
+	private int lingerMillis = 0;
+	private Path journalDir;
+	private Path logFile;
+	private int backfill = 0;
+	private int metricsPort = 0;
+	private int messageRate = 0;
+	private int messageBurst = 20;
+	private int addressRate = 0;
+	private int addressBurst = 100;
+	private int clusterPort = 0;
+	private String clusterAddress;
+	private String clusterSecret;
+	private int drainMillis = 5000;
+	private int heartbeatMillis = 0;
+	private int idleTimeoutMillis = 90_000;
+	private int compressionThreshold = 256;
+	private String nodeName;
+	private List<String> peers = List.of();
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public ServerConfig mode(Mode mode) {
+		if (mode == null)
+			throw new IllegalArgumentException("mode cannot be null");
+		this.mode = mode;
+		return this;
+	}
+
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	public ServerConfig eventLoops(int eventLoops) {
+		if (eventLoops < 1)
+			throw new IllegalArgumentException("at least one event loop is needed");
+		this.eventLoops = eventLoops;
+		return this;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @param maxConnections number of clients that may be connected at once, further clients are turned away
+	 * @return this config
+	 */
+	public ServerConfig maxConnections(int maxConnections) {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("at least one connection must be allowed");
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @param queueCapacity number of messages that may wait for a client before the overflow policy applies
+	 * @return this config
+	 */
+	public ServerConfig queueCapacity(int queueCapacity) {
+		if (queueCapacity < 1)
+			throw new IllegalArgumentException("queue capacity must be positive");
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * @param overflowPolicy what happens to clients that do not read fast enough
+	 * @return this config
+	 */
+	public ServerConfig overflowPolicy(OverflowPolicy overflowPolicy) {
+		if (overflowPolicy == null)
+			throw new IllegalArgumentException("overflow policy cannot be null");
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	public int getFlushThreshold() {
+		return flushThreshold;
+	}
+
+	/**
+	 * @param flushThreshold number of bytes that are written at once, more pending bytes trigger a write right away
+	 * @return this config
+	 */
+	public ServerConfig flushThreshold(int flushThreshold) {
+		if (flushThreshold < 1)
+			throw new IllegalArgumentException("flush threshold must be positive");
+		this.flushThreshold = flushThreshold;
+		return this;
+	}
+
+	public int getLingerMillis() {
+		return lingerMillis;
+	}
+
+	/**
+	 * @param lingerMillis how long a connection waits for more messages before it writes, 0 writes as soon as the queue is empty
+	 * @return this config
+	 */
+	public ServerConfig lingerMillis(int lingerMillis) {
+		if (lingerMillis < 0)
+			throw new IllegalArgumentException("linger cannot be negative");
+		this.lingerMillis = lingerMillis;
+		return this;
+	}
+
+	public Path getJournalDir() {
+		return journalDir;
+	}
+
+	/**
+	 * @param journalDir directory the messages are logged to for HISTORY, null to not keep any history
+	 * @return this config
+	 */
+	public ServerConfig journalDir(Path journalDir) {
+		this.journalDir = journalDir;
+		return this;
+	}
+
+	public Path getLogFile() {
+		return logFile;
+	}
+
+	/**
+	 * @param logFile file the events of the server are appended to, null to write them to System.out
+	 * @return this config
+	 */
+	public ServerConfig logFile(Path logFile) {
+		this.logFile = logFile;
+		return this;
+	}
+
+	public int getBackfill() {
+		return backfill;
+	}
+
+	/**
+	 * @param backfill number of recent messages a user gets after joining the chat or a room, 0 for none
+	 * @return this config
+	 */
+	public ServerConfig backfill(int backfill) {
+		if (backfill < 0)
+			throw new IllegalArgumentException("backfill cannot be negative");
+		this.backfill = backfill;
+		return this;
+	}
+
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+
+	/**
+	 * @param metricsPort local port of the Prometheus endpoint, 0 to not open one
+	 * @return this config
+	 */
+	public ServerConfig metricsPort(int metricsPort) {
+		if (metricsPort < 0 || metricsPort > 65535)
+			throw new IllegalArgumentException("port number invalid");
+		this.metricsPort = metricsPort;
+		return this;
+	}
+
+	public int getMessageRate() {
+		return messageRate;
+	}
+
+	/**
+	 * @param messageRate lines per second a session may send on average, 0 for no limit
+	 * @return this config
+	 */
+	public ServerConfig messageRate(int messageRate) {
+		if (messageRate < 0)
+			throw new IllegalArgumentException("rate cannot be negative");
+		this.messageRate = messageRate;
+		return this;
+	}
+
+	public int getMessageBurst() {
+		return messageBurst;
+	}
+
+	/**
+	 * @param messageBurst lines a session may send at once after being quiet
+	 * @return this config
+	 */
+	public ServerConfig messageBurst(int messageBurst) {
+		if (messageBurst < 1)
+			throw new IllegalArgumentException("burst must be positive");
+		this.messageBurst = messageBurst;
+		return this;
+	}
+
+	public int getAddressRate() {
+		return addressRate;
+	}
+
+	/**
+	 * @param addressRate lines per second all sessions from one address may send together on average, 0 for no limit
+	 * @return this config
+	 */
+	public ServerConfig addressRate(int addressRate) {
+		if (addressRate < 0)
+			throw new IllegalArgumentException("rate cannot be negative");
+		this.addressRate = addressRate;
+		return this;
+	}
+
+	public int getAddressBurst() {
+		return addressBurst;
+	}
+
+	/**
+	 * @param addressBurst lines all sessions from one address may send at once after being quiet
+	 * @return this config
+	 */
+	public ServerConfig addressBurst(int addressBurst) {
+		if (addressBurst < 1)
+			throw new IllegalArgumentException("burst must be positive");
+		this.addressBurst = addressBurst;
+		return this;
+	}
+
+	public int getDrainMillis() {
+		return drainMillis;
+	}
+
+	/**
+	 * @param drainMillis how long stopping the server waits for connections to write what is queued for them
+	 * @return this config
+	 */
+	public ServerConfig drainMillis(int drainMillis) {
+		if (drainMillis < 0)
+			throw new IllegalArgumentException("drain timeout cannot be negative");
+		this.drainMillis = drainMillis;
+		return this;
+	}
+
+	public int getHeartbeatMillis() {
+		return heartbeatMillis;
+	}
+
+	/**
+	 * @param heartbeatMillis how long a client may be silent before it is sent a PING, 0 to never check clients,
+	 *                        the default, since plain line clients like nc do not expect PING lines
+	 * @return this config
+	 */
+	public ServerConfig heartbeatMillis(int heartbeatMillis) {
+		if (heartbeatMillis < 0)
+			throw new IllegalArgumentException("heartbeat cannot be negative");
+		this.heartbeatMillis = heartbeatMillis;
+		return this;
+	}
+
+	public int getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	/**
+	 * @param idleTimeoutMillis how long a client may be silent before it is disconnected,
+	 *                          clients that answer the PING with PONG are never silent that long
+	 * @return this config
+	 */
+	public ServerConfig idleTimeoutMillis(int idleTimeoutMillis) {
+		if (idleTimeoutMillis < 1)
+			throw new IllegalArgumentException("idle timeout must be positive");
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		return this;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * @param compressionThreshold bytes from which on frames to clients that asked for DEFLATE are compressed,
+	 *                             0 to never compress
+	 * @return this config
+	 */
+	public ServerConfig compressionThreshold(int compressionThreshold) {
+		if (compressionThreshold < 0)
+			throw new IllegalArgumentException("compression threshold cannot be negative");
+		this.compressionThreshold = compressionThreshold;
+		return this;
+	}
+
+	public int getClusterPort() {
+		return clusterPort;
+	}
+
+	/**
+	 * @param clusterPort port other nodes of the cluster link to, 0 if this server is no node of a cluster
+	 * @return this config
+	 */
+	public ServerConfig clusterPort(int clusterPort) {
+		if (clusterPort < 0 || clusterPort > 65535)
+			throw new IllegalArgumentException("port number invalid");
+		this.clusterPort = clusterPort;
+		return this;
+	}
+
+	public String getClusterAddress() {
+		return clusterAddress;
+	}
+
+	/**
+	 * @param clusterAddress address the cluster port is bound to, null for loopback, 0.0.0.0 for every interface
+	 * @return this config
+	 */
+	public ServerConfig clusterAddress(String clusterAddress) {
+		if (clusterAddress != null && clusterAddress.isBlank())
+			throw new IllegalArgumentException("cluster address cannot be blank");
+		this.clusterAddress = clusterAddress;
+		return this;
+	}
+
+	public String getClusterSecret() {
+		return clusterSecret;
+	}
+
+	/**
+	 * @param clusterSecret shared by all nodes of the cluster, a link is only used once the other node proved it knows it
+	 * @return this config
+	 */
+	public ServerConfig clusterSecret(String clusterSecret) {
+		if (clusterSecret != null && clusterSecret.isBlank())
+			throw new IllegalArgumentException("cluster secret cannot be blank");
+		this.clusterSecret = clusterSecret;
+		return this;
+	}
+
+	public String getNodeName() {
+		return nodeName;
+	}
+
+	/**
+	 * @param nodeName name of this node, unique in the cluster, null for node-clusterPort
+	 * @return this config
+	 */
+	public ServerConfig nodeName(String nodeName) {
+		if (nodeName != null && nodeName.isBlank())
+			throw new IllegalArgumentException("node name cannot be blank");
+		this.nodeName = nodeName;
+		return this;
+	}
+
+	public List<String> getPeers() {
+		return peers;
+	}
+
+	/**
+	 * @param peers cluster ports of other nodes as host:port, this node links to them,
+	 *              nodes that start later may link to this one on their own
+	 * @return this config
+	 */
+	public ServerConfig peers(String... peers) {
+		for (String peer : peers) {
+			int separation = peer.lastIndexOf(':');
+			if (separation <= 0)
+				throw new IllegalArgumentException("peer must look like host:port: " + peer);
+			int port;
+			try {
+				port = Integer.parseInt(peer.substring(separation + 1));
+			} catch (NumberFormatException exc) {
+				throw new IllegalArgumentException("port number invalid: " + peer);
+			}
+			if (port < 1 || port > 65535)
+				throw new IllegalArgumentException("port number invalid: " + peer);
+		}
+		this.peers = List.of(peers);
+		return this;
+	}
+
+	/**
+	 * read settings of the form key=value, for example mode=virtual, loops=4 or max=10000
+	 *
+	 * @param args settings
+	 * @return this config
+	 */
+	public ServerConfig parse(String... args) {
+		for (String arg : args) {
+			int separation = arg.indexOf('=');
+			if (separation <= 0)
+				throw new IllegalArgumentException("setting must look like key=value: " + arg);
+			String value = arg.substring(separation + 1).strip();
+			try {
+				switch (arg.substring(0, separation).strip()) {
+					case "mode" -> mode(Mode.valueOf(value.toUpperCase()));
+					case "loops" -> eventLoops(Integer.parseInt(value));
+					case "max" -> maxConnections(Integer.parseInt(value));
+					case "queue" -> queueCapacity(Integer.parseInt(value));
+					case "flush" -> flushThreshold(Integer.parseInt(value));
+					case "linger" -> lingerMillis(Integer.parseInt(value));
+					case "backfill" -> backfill(Integer.parseInt(value));
+					case "metrics" -> metricsPort(Integer.parseInt(value));
+					case "rate" -> messageRate(Integer.parseInt(value));
+					case "burst" -> messageBurst(Integer.parseInt(value));
+					case "iprate" -> addressRate(Integer.parseInt(value));
+					case "ipburst" -> addressBurst(Integer.parseInt(value));
+					case "heartbeat" -> heartbeatMillis(Integer.parseInt(value));
+					case "idle" -> idleTimeoutMillis(Integer.parseInt(value));
+					case "compress" -> compressionThreshold(Integer.parseInt(value));
+					case "drain" -> drainMillis(Integer.parseInt(value));
+					case "cluster" -> clusterPort(Integer.parseInt(value));
+					case "clusteraddress" -> clusterAddress(value);
+					case "secret" -> clusterSecret(value);
+					case "node" -> nodeName(value);
+					case "peers" -> peers(Arrays.stream(value.split(",")).map(String::strip).filter(peer -> !peer.isEmpty()).toArray(String[]::new));
+					case "journal" -> journalDir(Path.of(value));
+					case "log" -> logFile(Path.of(value));
+					case "overflow" -> overflowPolicy(OverflowPolicy.valueOf(value.toUpperCase()));
+					default -> throw new IllegalArgumentException("unknown setting: " + arg);
+				}
+			} catch (NumberFormatException exc) {
+				throw new IllegalArgumentException("number invalid: " + arg);
+			}
+		}
+		return this;
+	}
+}
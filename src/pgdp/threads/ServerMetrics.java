@@ -0,0 +1,335 @@
+package pgdp.threads;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counters of one server
+ * recording is cheap and never blocks, every thread counts into its own cell
+ * reading sums the cells up, so it is meant for monitoring and not for the hot path
+ */
+class ServerMetrics implements ServerMetricsMBean {
+	private final LongAdder connectionsOpened = new LongAdder();
+	private final LongAdder connectionsClosed = new LongAdder();
+	private final LongAdder connectionsRejected = new LongAdder();
+	private final LongAdder handshakes = new LongAdder();
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder queuedMessages = new LongAdder();
+	private final LongAccumulator maxQueueDepth = new LongAccumulator(Math::max, 0);
+	private final LongAdder droppedMessages = new LongAdder();
+	private final LongAdder slowConsumers = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder messagesWritten = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder throttledBySession = new LongAdder();
+	private final LongAdder throttledByAddress = new LongAdder();
+	private final LongAdder idleDisconnects = new LongAdder();
+	private final LongAdder bytesBeforeCompression = new LongAdder();
+	private final LongAdder bytesAfterCompression = new LongAdder();
+	//receivers of every broadcast
+	private final Histogram fanOut = new Histogram();
+	//nanoseconds the server needed for every line a client sent
+	private final Histogram handlingLatency = new Histogram();
+	//counter values when the rates were last computed, only used while holding the lock
+	private final Object rateLock = new Object();
+	private long sampleTime = System.nanoTime();
+	private final long[] sample = new long[3];
+	private final double[] rates = new double[3];
+
+	void connectionOpened() {
+		connectionsOpened.increment();
+	}
+
+	void connectionClosed() {
+		connectionsClosed.increment();
+	}
+
+	void connectionRejected() {
+		connectionsRejected.increment();
+	}
+
+	void handshakeCompleted() {
+		handshakes.increment();
+	}
+
+	/**
+	 * @param nanos that handling one line from a client took
+	 */
+	void lineHandled(long nanos) {
+		messagesIn.increment();
+		handlingLatency.record(nanos);
+	}
+
+	/**
+	 * @param receivers of one message to everyone or to a room
+	 */
+	void broadcast(int receivers) {
+		fanOut.record(receivers);
+	}
+
+	/**
+	 * @param delta change of the number of queued messages
+	 */
+	void queueDepthChanged(long delta) {
+		queuedMessages.add(delta);
+	}
+
+	/**
+	 * @param depth of one queue after a message was added
+	 */
+	void queueDepthObserved(int depth) {
+		maxQueueDepth.accumulate(depth);
+	}
+
+	/**
+	 * @param count of messages that were dropped because a client was too slow
+	 */
+	void messageDropped(long count) {
+		droppedMessages.add(count);
+	}
+
+	void slowConsumerDisconnected() {
+		slowConsumers.increment();
+	}
+
+	/**
+	 * @param messages that were completed by one write to a socket
+	 * @param bytes    that were written
+	 */
+	void written(int messages, long bytes) {
+		writes.increment();
+		messagesWritten.add(messages);
+		bytesWritten.add(bytes);
+	}
+
+	/**
+	 * @param byAddress if the address of the client was over its limit, otherwise the session was
+	 */
+	void lineThrottled(boolean byAddress) {
+		(byAddress ? throttledByAddress : throttledBySession).increment();
+	}
+
+	/**
+	 * @param before bytes of a frame
+	 * @param after  bytes of the compressed frame that replaces it
+	 */
+	void compressed(int before, int after) {
+		bytesBeforeCompression.add(before);
+		bytesAfterCompression.add(after);
+	}
+
+	void idleDisconnected() {
+		idleDisconnects.increment();
+	}
+
+	/**
+	 * @return connections that were accepted and not closed yet, including those that did not log in yet
+	 */
+	@Override
+	public long getActiveConnections() {
+		return connectionsOpened.sum() - connectionsClosed.sum();
+	}
+
+	@Override
+	public long getConnectionsOpened() {
+		return connectionsOpened.sum();
+	}
+
+	/**
+	 * @return connections that were turned away because the server was full
+	 */
+	@Override
+	public long getConnectionsRejected() {
+		return connectionsRejected.sum();
+	}
+
+	/**
+	 * @return users that logged in
+	 */
+	@Override
+	public long getHandshakes() {
+		return handshakes.sum();
+	}
+
+	@Override
+	public double getHandshakesPerSecond() {
+		return rate(0);
+	}
+
+	/**
+	 * @return lines received from clients
+	 */
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public double getMessagesInPerSecond() {
+		return rate(1);
+	}
+
+	@Override
+	public double getMessagesOutPerSecond() {
+		return rate(2);
+	}
+
+	/**
+	 * @return messages waiting in all outbound queues
+	 */
+	@Override
+	public long getQueuedMessages() {
+		return queuedMessages.sum();
+	}
+
+	/**
+	 * @return deepest any outbound queue has been
+	 */
+	@Override
+	public long getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	@Override
+	public long getDroppedMessages() {
+		return droppedMessages.sum();
+	}
+
+	@Override
+	public long getSlowConsumers() {
+		return slowConsumers.sum();
+	}
+
+	@Override
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	@Override
+	public long getMessagesWritten() {
+		return messagesWritten.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	/**
+	 * @return socket writes per written message, below 1 if messages are batched
+	 */
+	@Override
+	public double getWritesPerMessage() {
+		long messages = getMessagesWritten();
+		return messages == 0 ? 0 : (double) getWrites() / messages;
+	}
+
+	/**
+	 * @return lines dropped because a session sent faster than its limit
+	 */
+	@Override
+	public long getThrottledBySession() {
+		return throttledBySession.sum();
+	}
+
+	/**
+	 * @return lines dropped because all sessions of an address together sent faster than their limit
+	 */
+	@Override
+	public long getThrottledByAddress() {
+		return throttledByAddress.sum();
+	}
+
+	/**
+	 * @return connections that were closed because the client was silent for too long
+	 */
+	@Override
+	public long getIdleDisconnects() {
+		return idleDisconnects.sum();
+	}
+
+	/**
+	 * @return bytes of the frames that were compressed
+	 */
+	@Override
+	public long getBytesBeforeCompression() {
+		return bytesBeforeCompression.sum();
+	}
+
+	/**
+	 * @return bytes of the compressed frames that were sent instead
+	 */
+	@Override
+	public long getBytesAfterCompression() {
+		return bytesAfterCompression.sum();
+	}
+
+	@Override
+	public double getFanOutMean() {
+		return fanOut.getMean();
+	}
+
+	@Override
+	public long getFanOutMax() {
+		return fanOut.getMax();
+	}
+
+	@Override
+	public long getHandlingLatencyP50() {
+		return handlingLatency.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getHandlingLatencyP99() {
+		return handlingLatency.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getHandlingLatencyP999() {
+		return handlingLatency.getValueAtPercentile(99.9);
+	}
+
+	@Override
+	public long getHandlingLatencyMax() {
+		return handlingLatency.getMax();
+	}
+
+	Histogram getFanOut() {
+		return fanOut;
+	}
+
+	Histogram getHandlingLatency() {
+		return handlingLatency;
+	}
+
+	/**
+	 * helper method that computes the rates of handshakes, messages in and messages out
+	 * the rates are updated at most once per second, by whoever asks first after that
+	 *
+	 * @param index of the rate
+	 * @return events per second during the last completed interval
+	 */
+	private double rate(int index) {
+		synchronized (rateLock) {
+			long now = System.nanoTime();
+			long elapsed = now - sampleTime;
+			if (elapsed >= 1_000_000_000L) {
+				long[] current = {getHandshakes(), getMessagesIn(), getMessagesWritten()};
+				for (int i = 0; i < current.length; i++) {
+					rates[i] = (current[i] - sample[i]) * 1e9 / elapsed;
+					sample[i] = current[i];
+				}
+				sampleTime = now;
+			}
+			return rates[index];
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("active=%d handshakes=%d messagesIn=%d queued=%d maxQueueDepth=%d dropped=%d slowConsumers=%d throttled=%d idle=%d writes=%d messagesWritten=%d bytesWritten=%d writesPerMessage=%.3f fanOutMean=%.1f handling=[%s]",
+				getActiveConnections(), getHandshakes(), getMessagesIn(), getQueuedMessages(), getMaxQueueDepth(),
+				getDroppedMessages(), getSlowConsumers(), getThrottledBySession() + getThrottledByAddress(), getIdleDisconnects(), getWrites(), getMessagesWritten(), getBytesWritten(),
+				getWritesPerMessage(), getFanOutMean(), handlingLatency);
+	}
+}
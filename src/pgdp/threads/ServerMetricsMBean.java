@@ -0,0 +1,61 @@
+package pgdp.threads;
+
+/**
+ * what a chat server shows through JMX, for example in jconsole under pgdp.threads
+ * latencies are in nanoseconds
+ */
+public interface ServerMetricsMBean {
+	long getActiveConnections();
+
+	long getConnectionsOpened();
+
+	long getConnectionsRejected();
+
+	long getHandshakes();
+
+	double getHandshakesPerSecond();
+
+	long getMessagesIn();
+
+	double getMessagesInPerSecond();
+
+	long getMessagesWritten();
+
+	double getMessagesOutPerSecond();
+
+	long getBytesWritten();
+
+	long getWrites();
+
+	double getWritesPerMessage();
+
+	long getQueuedMessages();
+
+	long getMaxQueueDepth();
+
+	long getDroppedMessages();
+
+	long getSlowConsumers();
+
+	long getThrottledBySession();
+
+	long getThrottledByAddress();
+
+	long getIdleDisconnects();
+
+	long getBytesBeforeCompression();
+
+	long getBytesAfterCompression();
+
+	double getFanOutMean();
+
+	long getFanOutMax();
+
+	long getHandlingLatencyP50();
+
+	long getHandlingLatencyP99();
+
+	long getHandlingLatencyP999();
+
+	long getHandlingLatencyMax();
+}
@@ -0,0 +1,204 @@
+package pgdp.threads;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * all connections and usernames of one server
+ * safe to use from every connection thread, iterating never throws a ConcurrentModificationException
+ * and shows users that join or leave during the iteration either way
+ *
+ * every user gets a small id when claiming its username, the ids of users that left are given out again,
+ * so the ids of all users stay close to 1 and the users can be found by indexing an array with the id
+ */
+class SessionRegistry {
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, Connection> users = new ConcurrentHashMap<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final UserDirectory directory = new UserDirectory();
+	//ids that are in use and the users they belong to, only changed while holding the lock
+	private final Object idLock = new Object();
+	private final BitSet usedIds = new BitSet();
+	private volatile AtomicReferenceArray<Connection> slots = new AtomicReferenceArray<>(64);
+	private volatile int highestId;
+
+	/**
+	 * add a connection if the limit has not been reached yet
+	 *
+	 * @param connection to be added
+	 * @param limit      of connections
+	 * @return if the connection was added
+	 */
+	boolean add(Connection connection, int limit) {
+		int current;
+		do {
+			current = size.get();
+			if (current >= limit) return false;
+		} while (!size.compareAndSet(current, current + 1));
+		connections.add(connection);
+		return true;
+	}
+
+	/**
+	 * remove a connection and release its username
+	 *
+	 * @param connection to be removed
+	 */
+	void remove(Connection connection) {
+		if (!connections.remove(connection)) return;
+		size.decrementAndGet();
+		release(connection);
+	}
+
+	/**
+	 * release the username and the id of a user, for users of other nodes that are never added as connection
+	 *
+	 * @param connection of the user
+	 */
+	void release(Connection connection) {
+		if (connection.getUsername() != null && users.remove(connection.getUsername(), connection)) {
+			directory.remove(connection.getUsername(), connection);
+		}
+		if (connection.getId() != 0) releaseId(connection.getId());
+	}
+
+	/**
+	 * @return sorted list of all users for WHOIS
+	 */
+	UserDirectory directory() {
+		return directory;
+	}
+
+	/**
+	 * claim a username, only one connection can win if several try at the same time
+	 * the winner also gets its id
+	 *
+	 * @param username   to be claimed
+	 * @param connection that wants the username
+	 * @return if the username was free
+	 */
+	boolean claim(String username, Connection connection) {
+		if (users.putIfAbsent(username, connection) != null) return false;
+		synchronized (idLock) {
+			int id = usedIds.nextClearBit(1);
+			usedIds.set(id);
+			if (id >= slots.length()) {
+				AtomicReferenceArray<Connection> grown = new AtomicReferenceArray<>(slots.length() * 2);
+				for (int i = 0; i < slots.length(); i++) {
+					grown.set(i, slots.get(i));
+				}
+				slots = grown;
+			}
+			//the id is set before the connection can be found through it
+			connection.assignId(id);
+			slots.set(id, connection);
+			if (id > highestId) highestId = id;
+		}
+		directory.add(username, connection);
+		return true;
+	}
+
+	/**
+	 * helper method that frees the id of a user that left
+	 */
+	private void releaseId(int id) {
+		synchronized (idLock) {
+			slots.set(id, null);
+			usedIds.clear(id);
+		}
+	}
+
+	/**
+	 * @param id of a user
+	 * @return connection of the user, null if nobody has that id
+	 */
+	Connection get(int id) {
+		AtomicReferenceArray<Connection> current = slots;
+		return id > 0 && id < current.length() ? current.get(id) : null;
+	}
+
+	/**
+	 * hand a message to every user
+	 * walks the ids instead of the usernames, so nothing is allocated or compared but ints
+	 *
+	 * @param msg    to be sent
+	 * @param except id of the user that does not get the message, 0 for nobody
+	 * @return number of receivers
+	 */
+	int broadcast(Message msg, int except) {
+		AtomicReferenceArray<Connection> current = slots;
+		int last = Math.min(highestId, current.length() - 1);
+		int receivers = 0;
+		for (int id = 1; id <= last; id++) {
+			if (id == except) continue;
+			Connection connection = current.get(id);
+			if (connection != null) {
+				connection.send(msg);
+				receivers++;
+			}
+		}
+		return receivers;
+	}
+
+	/**
+	 * hand a message to some users
+	 *
+	 * @param ids    of the receivers
+	 * @param msg    to be sent
+	 * @param except id of the user that does not get the message, 0 for nobody
+	 * @return number of receivers
+	 */
+	int send(int[] ids, Message msg, int except) {
+		AtomicReferenceArray<Connection> current = slots;
+		int receivers = 0;
+		for (int id : ids) {
+			if (id == except || id >= current.length()) continue;
+			Connection connection = current.get(id);
+			if (connection != null) {
+				connection.send(msg);
+				receivers++;
+			}
+		}
+		return receivers;
+	}
+
+	/**
+	 * @return the highest id that has been given out, every user has an id between 1 and this
+	 */
+	int highestId() {
+		return highestId;
+	}
+
+	/**
+	 * @param username of the user
+	 * @return connection of the user, null if nobody has that name
+	 */
+	Connection lookup(String username) {
+		return users.get(username);
+	}
+
+	/**
+	 * @return connections of all users that have a username
+	 */
+	Collection<Connection> users() {
+		return users.values();
+	}
+
+	/**
+	 * @return all connections, including the ones still choosing a username
+	 */
+	Collection<Connection> connections() {
+		return connections;
+	}
+
+	/**
+	 * @return number of connections
+	 */
+	int size() {
+		return size.get();
+	}
+}
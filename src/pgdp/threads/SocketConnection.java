@@ -0,0 +1,149 @@
+package pgdp.threads;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * blocking connection that reads the socket on its own thread
+ */
+class SocketConnection extends Connection implements Runnable {
+	private Socket socket;
+	private OutputStream output;
+	private final OutboundQueue outbound;
+
+	public SocketConnection(ChatServer server, Socket socket) throws IOException {
+		super(server);
+		this.socket = socket;
+		this.output = socket.getOutputStream();
+		this.outbound = createOutboundQueue();
+	}
+
+	/**
+	 * queue the message for the writer thread, so a slow client never blocks the sender
+	 *
+	 * @param msg to be sent
+	 */
+	@Override
+	void send(Message msg) {
+		if (!outbound.offer(msg)) {
+			//the client is too slow, closing the socket ends both threads
+			closeSocket();
+		}
+	}
+
+	/**
+	 * close the socket once the writer thread has written everything queued so far,
+	 * which ends the read loop in run()
+	 */
+	@Override
+	void close() {
+		outbound.finish();
+	}
+
+	@Override
+	void abort() {
+		closeSocket();
+	}
+
+	@Override
+	InetAddress getInetAddress() {
+		return socket.getInetAddress();
+	}
+
+	/**
+	 * writer thread of the connection, writes queued messages until the connection is closed
+	 * messages are collected into one batch that is written once the queue is empty, the linger
+	 * time is over or the flush threshold is reached
+	 */
+	void write() {
+		ServerConfig config = server.getConfig();
+		long linger = TimeUnit.MILLISECONDS.toNanos(config.getLingerMillis());
+		byte[] batch = new byte[config.getFlushThreshold()];
+		try {
+			Message msg;
+			while ((msg = outbound.take(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) != null) {
+				long deadline = System.nanoTime() + linger;
+				int length = 0;
+				int count = 0;
+				do {
+					byte[] bytes = encode(msg);
+					if (length + bytes.length > batch.length) {
+						//the message does not fit anymore, write what is there first
+						writeBatch(batch, length, count);
+						length = 0;
+						count = 0;
+					}
+					if (bytes.length > batch.length) {
+						writeBatch(bytes, bytes.length, 1);
+					} else {
+						System.arraycopy(bytes, 0, batch, length, bytes.length);
+						length += bytes.length;
+						count++;
+					}
+
+					msg = outbound.poll();
+					if (msg == null && linger > 0) {
+						msg = outbound.take(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					}
+				} while (msg != null);
+				writeBatch(batch, length, count);
+			}
+		} catch (IOException | InterruptedException e) {
+			//the reading thread notices the broken socket and removes the user
+		}
+		if (outbound.isFinished()) closeSocket();
+	}
+
+	/**
+	 * run method of thread
+	 */
+	@Override
+	public void run() {
+		opened();
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+			String input;
+			while ((input = in.readLine()) != null) {
+				handleLine(input);
+			}
+
+			//close the connection
+			in.close();
+			socket.close();
+		} catch (SocketException e) {
+			//do nothing :)
+			//because I already handle the exception by removing users
+		} catch (IOException e) {
+			server.getLog().error(getInetAddress(), getUsername(), "reading", e);
+		}
+		outbound.close();
+		closed();
+	}
+
+	/**
+	 * helper method that writes a batch of messages with a single write
+	 */
+	private void writeBatch(byte[] batch, int length, int count) throws IOException {
+		if (length == 0) return;
+		output.write(batch, 0, length);
+		server.getMetrics().written(count, length);
+	}
+
+	/**
+	 * helper method that closes the socket right away
+	 */
+	private void closeSocket() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			server.getLog().error(getInetAddress(), getUsername(), "closing", e);
+		}
+	}
+}
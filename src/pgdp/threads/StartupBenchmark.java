@@ -0,0 +1,187 @@
+package pgdp.threads;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * cold start of the server like an autoscaler sees it, every run starts a fresh JVM with ChatServer.main
+ * measures the time until the first client is greeted, which is the first accept, and until it is logged in,
+ * and fails if the median is above a threshold, so startup cannot get slower unnoticed
+ *
+ * java -cp target/classes pgdp.threads.StartupBenchmark runs=10 threshold=1500
+ * java -cp target/pinguchat-1.0-SNAPSHOT.jar pgdp.threads.StartupBenchmark jvm=-XX:SharedArchiveFile=target/pinguchat.jsa
+ * the archive is built by mvn -Pcds package, which runs this class with train
+ */
+public class StartupBenchmark {
+	static final int DEFAULT_RUNS = 5;
+	//generous, a cold start takes a few hundred milliseconds, this only catches real regressions
+	static final int DEFAULT_THRESHOLD_MILLIS = 2000;
+	private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+
+	/**
+	 * what was measured, in milliseconds since the JVM of the server was started
+	 *
+	 * @param accepted median until the first client was greeted
+	 * @param loggedIn median until the first client was logged in
+	 * @param slowest  longest any run took until the login
+	 */
+	record Result(long accepted, long loggedIn, long slowest) {
+		@Override
+		public String toString() {
+			return String.format("first accept %d ms, first VALID %d ms, slowest VALID %d ms (medians of fresh JVMs)", accepted, loggedIn, slowest);
+		}
+	}
+
+	/**
+	 * run the benchmark
+	 *
+	 * @param args settings runs=5, threshold=2000 and any number of jvm=option for the server, or train
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 1 && args[0].equals("train")) {
+			train();
+			return;
+		}
+
+		int runs = DEFAULT_RUNS;
+		int threshold = DEFAULT_THRESHOLD_MILLIS;
+		List<String> options = new ArrayList<>();
+		for (String arg : args) {
+			int separation = arg.indexOf('=');
+			if (separation <= 0)
+				throw new IllegalArgumentException("setting must look like key=value: " + arg);
+			String value = arg.substring(separation + 1).strip();
+			try {
+				switch (arg.substring(0, separation).strip()) {
+					case "runs" -> runs = Integer.parseInt(value);
+					case "threshold" -> threshold = Integer.parseInt(value);
+					case "jvm" -> options.add(value);
+					default -> throw new IllegalArgumentException("unknown setting: " + arg);
+				}
+			} catch (NumberFormatException exc) {
+				throw new IllegalArgumentException("number invalid: " + arg);
+			}
+		}
+		if (runs <= 0)
+			throw new IllegalArgumentException("runs must be positive");
+
+		Result result = measure(runs, options);
+		System.out.println(result);
+		if (result.loggedIn() > threshold) {
+			System.out.printf("Startup regressed, the first login took more than %d ms%n", threshold);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * start the server in fresh JVMs and log in one client each time
+	 *
+	 * @param runs    number of JVMs, one after another
+	 * @param options for the JVMs of the server
+	 * @return medians of all runs
+	 */
+	static Result measure(int runs, List<String> options) throws IOException, InterruptedException {
+		long[] accepted = new long[runs];
+		long[] loggedIn = new long[runs];
+		for (int i = 0; i < runs; i++) {
+			long[] run = measureOnce(options);
+			accepted[i] = run[0];
+			loggedIn[i] = run[1];
+		}
+		long slowest = Arrays.stream(loggedIn).max().orElse(0);
+		Arrays.sort(accepted);
+		Arrays.sort(loggedIn);
+		return new Result(accepted[runs / 2], loggedIn[runs / 2], slowest);
+	}
+
+	/**
+	 * helper method that starts one server and logs in one client as soon as it accepts
+	 *
+	 * @return milliseconds until the first accept and until the first login
+	 */
+	private static long[] measureOnce(List<String> options) throws IOException, InterruptedException {
+		int port;
+		try (ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+		List<String> command = new ArrayList<>();
+		command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+		command.addAll(options);
+		command.addAll(List.of("-cp", System.getProperty("java.class.path"), ChatServer.class.getName(), String.valueOf(port)));
+
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.redirectErrorStream(true)
+				.start();
+		try (Socket socket = connect(port, start, process)) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			if (!"ENTER_USERNAME".equals(in.readLine()))
+				throw new IOException("server did not ask for the username");
+			long accepted = System.nanoTime() - start;
+			out.println("startup");
+			if (!"VALID".equals(in.readLine()))
+				throw new IOException("server did not log in the user");
+			long loggedIn = System.nanoTime() - start;
+			return new long[]{TimeUnit.NANOSECONDS.toMillis(accepted), TimeUnit.NANOSECONDS.toMillis(loggedIn)};
+		} finally {
+			process.destroy();
+			if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly();
+		}
+	}
+
+	/**
+	 * helper method that connects as soon as the server listens
+	 */
+	private static Socket connect(int port, long start, Process process) throws IOException, InterruptedException {
+		while (true) {
+			try {
+				Socket socket = new Socket("localhost", port);
+				socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+				return socket;
+			} catch (IOException e) {
+				if (!process.isAlive())
+					throw new IOException("server exited with " + process.exitValue());
+				if (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MILLIS))
+					throw new IOException("server did not listen within " + CONNECT_TIMEOUT_MILLIS + " ms");
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	/**
+	 * training run for a class data sharing archive, loads the classes of a usual session in both transports
+	 * and exits, run it with -XX:ArchiveClassesAtExit=file to store them
+	 */
+	private static void train() throws IOException {
+		for (ServerConfig.Mode mode : new ServerConfig.Mode[]{ServerConfig.Mode.PLATFORM, ServerConfig.Mode.NIO}) {
+			ChatServer server = ChatServer.start("0", new ServerConfig().mode(mode).drainMillis(0));
+			try (Socket socket = new Socket("localhost", server.getPort())) {
+				socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+				in.readLine();
+				out.println("trainer");
+				in.readLine();
+				for (String line : new String[]{"hello", "@trainer hi", "JOIN #training", "#training hi", "WHOIS", "PENGU", "LOGOUT"}) {
+					out.println(line);
+				}
+				while (in.readLine() != null) {
+					//read until the server closed the connection after the goodbye
+				}
+			}
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package pgdp.threads;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * hashed timer wheel that runs many timeouts on a single thread
+ * the wheel has a fixed number of slots and moves one slot per tick, a timeout is put into the slot of its deadline
+ * and remembers how many more rounds the wheel has to turn, so scheduling and cancelling cost the same
+ * no matter how many timeouts are pending, at the price of running them up to one tick late
+ *
+ * the slots are only touched by the thread of the wheel, other threads hand new timeouts over through a queue
+ */
+class TimerWheel {
+	/**
+	 * one scheduled task, it runs at most once
+	 */
+	static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long rounds;
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * make sure the task does not run, it is removed from the wheel once its slot comes up
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+
+		boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	private final long tickNanos;
+	private final ArrayDeque<Timeout>[] slots;
+	private final int mask;
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final Thread thread;
+	private final long startTime = System.nanoTime();
+	//ticks since the start, only used by the thread of the wheel
+	private long tick;
+	private volatile boolean running = true;
+
+	/**
+	 * @param tick  time the wheel moves on by one slot, the precision of the timeouts
+	 * @param unit  of the tick
+	 * @param slots number of slots, rounded up to a power of two
+	 * @param name  of the thread
+	 */
+	public TimerWheel(long tick, TimeUnit unit, int slots, String name) {
+		if (tick <= 0 || slots < 1)
+			throw new IllegalArgumentException("tick and slots must be positive");
+		this.tickNanos = unit.toNanos(tick);
+		int size = Integer.highestOneBit(slots - 1 == 0 ? 1 : (slots - 1) << 1);
+		//generic arrays cannot be created, every slot is filled with an ArrayDeque<Timeout> right below
+		@SuppressWarnings("unchecked")
+		ArrayDeque<Timeout>[] wheel = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new ArrayDeque<>();
+		}
+		this.slots = wheel;
+		this.mask = size - 1;
+		this.thread = new Thread(this::run, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * run a task once the delay is over, on the thread of the wheel
+	 * the task must be short, every other timeout waits for it
+	 *
+	 * @param task  to be run
+	 * @param delay until the task runs
+	 * @param unit  of the delay
+	 * @return timeout that can be cancelled
+	 */
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * stop the thread of the wheel, timeouts that did not run yet never will
+	 */
+	void stop() {
+		running = false;
+		thread.interrupt();
+	}
+
+	/**
+	 * run method of the thread of the wheel
+	 */
+	private void run() {
+		while (running) {
+			long wait = startTime + (tick + 1) * tickNanos - System.nanoTime();
+			if (wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			transferPending();
+			expire(slots[(int) (tick & mask)]);
+			tick++;
+		}
+	}
+
+	/**
+	 * helper method that puts the timeouts scheduled since the last tick into their slots
+	 */
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled) continue;
+			//a deadline that already passed runs in the current slot
+			long ticks = Math.max((timeout.deadline - startTime + tickNanos - 1) / tickNanos, tick);
+			timeout.rounds = (ticks - tick) / slots.length;
+			slots[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * helper method that runs the timeouts of a slot that are due in this round
+	 */
+	private void expire(ArrayDeque<Timeout> slot) {
+		Iterator<Timeout> timeouts = slot.iterator();
+		while (timeouts.hasNext()) {
+			Timeout timeout = timeouts.next();
+			if (timeout.cancelled) {
+				timeouts.remove();
+			} else if (timeout.rounds <= 0) {
+				timeouts.remove();
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			} else {
+				timeout.rounds--;
+			}
+		}
+	}
+}
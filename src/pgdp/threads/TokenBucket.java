@@ -0,0 +1,50 @@
+package pgdp.threads;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * token bucket that limits how many messages may be sent per second
+ * the bucket holds up to burst tokens and gains rate tokens per second, every message takes one
+ * instead of the tokens the bucket remembers the time at which it would be full again,
+ * so refilling and taking a token is a single compare and set without any lock or background thread
+ */
+class TokenBucket {
+	//nanoseconds it takes to gain one token
+	private final long interval;
+	//nanoseconds it takes to fill the empty bucket
+	private final long capacity;
+	//time at which the bucket is full, anything earlier means it is full already
+	private final AtomicLong fullAt;
+
+	/**
+	 * @param rate  tokens gained per second
+	 * @param burst tokens the bucket holds at most
+	 */
+	public TokenBucket(int rate, int burst) {
+		if (rate < 1 || burst < 1)
+			throw new IllegalArgumentException("rate and burst must be positive");
+		this.interval = 1_000_000_000L / rate;
+		this.capacity = interval * burst;
+		this.fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * take one token
+	 *
+	 * @param now System.nanoTime() of the caller
+	 * @return if there was a token, if not nothing is taken
+	 */
+	boolean tryTake(long now) {
+		while (true) {
+			long full = fullAt.get();
+			//a full bucket does not keep gaining tokens
+			long next = Math.max(full, now) + interval;
+			if (next - now > capacity) return false;
+			if (fullAt.compareAndSet(full, next)) return true;
+		}
+	}
+
+	boolean tryTake() {
+		return tryTake(System.nanoTime());
+	}
+}
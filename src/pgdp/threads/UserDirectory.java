@@ -0,0 +1,192 @@
+package pgdp.threads;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * the user list WHOIS answers with, sorted by username
+ * the line of a user is formatted once when it claims its name, logins and logouts insert or remove it
+ * in a copy of the current snapshot, so WHOIS never rebuilds the list and only joins what it sends
+ */
+class UserDirectory {
+	//users that are shown at once by WHOIS page n
+	static final int PAGE_SIZE = 50;
+
+	private volatile Snapshot snapshot = new Snapshot(new String[0], new Connection[0], new String[0]);
+
+	/**
+	 * DateTimeFormatter to make the date look nice, unlike SimpleDateFormat it can be shared by all threads
+	 * in a class of its own, so it is only created once the first user logs in and not while the server starts
+	 */
+	private static final class DateFormat {
+		static final DateTimeFormatter INSTANCE = DateTimeFormatter.ofPattern("EEEE, dd.MM.yyyy HH:mm").withZone(ZoneId.systemDefault());
+	}
+
+	/**
+	 * all users at one point in time, never changed once it was built
+	 */
+	static final class Snapshot {
+		private final String[] names;
+		private final Connection[] connections;
+		private final String[] lines;
+		//joined on the first WHOIS without arguments, racing threads join the same text
+		private volatile Message all;
+
+		/**
+		 * @param names       of the users, sorted
+		 * @param connections of the users in the same order
+		 * @param lines       of the users in the same order
+		 */
+		private Snapshot(String[] names, Connection[] connections, String[] lines) {
+			this.names = names;
+			this.connections = connections;
+			this.lines = lines;
+		}
+
+		/**
+		 * @return copy with the user added, or replaced if the name is already in the list
+		 */
+		private Snapshot with(String username, Connection connection, String line) {
+			int index = Arrays.binarySearch(names, username);
+			if (index >= 0) {
+				Connection[] connections = this.connections.clone();
+				String[] lines = this.lines.clone();
+				connections[index] = connection;
+				lines[index] = line;
+				return new Snapshot(names, connections, lines);
+			}
+			index = -index - 1;
+			return new Snapshot(insert(names, index, username), insert(connections, index, connection), insert(lines, index, line));
+		}
+
+		/**
+		 * @return copy without the user, or this snapshot if the name belongs to another connection by now
+		 */
+		private Snapshot without(String username, Connection connection) {
+			int index = Arrays.binarySearch(names, username);
+			if (index < 0 || connections[index] != connection) return this;
+			return new Snapshot(delete(names, index), delete(connections, index), delete(lines, index));
+		}
+
+		/**
+		 * @return number of users
+		 */
+		int size() {
+			return names.length;
+		}
+
+		/**
+		 * @return whole list as it is sent for WHOIS, the same message for every request
+		 */
+		Message all() {
+			Message current = all;
+			if (current == null) {
+				current = Message.raw(join(lines, 0, lines.length));
+				all = current;
+			}
+			return current;
+		}
+
+		/**
+		 * @param prefix that the names start with
+		 * @return list of the users whose names start with the prefix, null if there are none
+		 */
+		String withPrefix(String prefix) {
+			//the names are sorted, so all matches follow the first name that is not smaller than the prefix
+			int index = Arrays.binarySearch(names, prefix);
+			int start = index < 0 ? -index - 1 : index;
+			int end = start;
+			while (end < names.length && names[end].startsWith(prefix)) end++;
+			return start == end ? null : join(lines, start, end);
+		}
+
+		/**
+		 * @return number of pages, at least one
+		 */
+		int pages() {
+			return Math.max(1, (names.length + PAGE_SIZE - 1) / PAGE_SIZE);
+		}
+
+		/**
+		 * @param page number, starting with 1
+		 * @return list of the users on the page, null if there is no such page
+		 */
+		String page(int page) {
+			if (page < 1 || page > pages()) return null;
+			int start = (page - 1) * PAGE_SIZE;
+			return join(lines, start, Math.min(start + PAGE_SIZE, lines.length));
+		}
+
+		private static String join(String[] lines, int start, int end) {
+			StringBuilder builder = new StringBuilder();
+			for (int i = start; i < end; i++) {
+				builder.append(lines[i]).append(System.lineSeparator());
+			}
+			return builder.toString();
+		}
+
+		private static <T> T[] insert(T[] array, int index, T value) {
+			T[] copy = Arrays.copyOf(array, array.length + 1);
+			System.arraycopy(array, index, copy, index + 1, array.length - index);
+			copy[index] = value;
+			return copy;
+		}
+
+		private static <T> T[] delete(T[] array, int index) {
+			T[] copy = Arrays.copyOf(array, array.length - 1);
+			System.arraycopy(array, index + 1, copy, index, array.length - index - 1);
+			return copy;
+		}
+	}
+
+	/**
+	 * called by the registry once a user claimed its name
+	 *
+	 * @param username   of the user
+	 * @param connection of the user
+	 */
+	void add(String username, Connection connection) {
+		String line = format(username, connection);
+		synchronized (this) {
+			snapshot = snapshot.with(username, connection, line);
+		}
+	}
+
+	/**
+	 * called by the registry once a user released its name
+	 * a user that already claimed the same name again is kept
+	 *
+	 * @param username   of the user
+	 * @param connection of the user
+	 */
+	void remove(String username, Connection connection) {
+		synchronized (this) {
+			snapshot = snapshot.without(username, connection);
+		}
+	}
+
+	/**
+	 * @return the current snapshot, the same one until users join or leave
+	 */
+	Snapshot snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * @return line of a user in the list
+	 */
+	private static String format(String username, Connection connection) {
+		String node = connection instanceof RemoteUser remote ? " on " + remote.getNode() : "";
+		return "- " + username + " connected since " + formatDate(connection.getConnectedSince()) + node;
+	}
+
+	/**
+	 * @param date to be shown
+	 * @return date formatted like Monday, 01.01.2024 12:00 in the local time zone
+	 */
+	static String formatDate(Date date) {
+		return DateFormat.INSTANCE.format(date.toInstant());
+	}
+}